@@ -0,0 +1,81 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.properties.CustomPath;
+import com.netflix.appinfo.InstanceInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 下线方：构建下线计划时拼接其他服务实例检查地址的开销
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EndpointUrlBenchmark {
+
+    private static final String PARAMS = "serverName=provider&instanceId=10.0.0.1:provider:8080";
+
+    /**
+     * none：使用homePageUrl；contextPath：server和management的context-path；managementPort：单独的管理端口
+     */
+    @Param({"none", "contextPath", "managementPort"})
+    private String customPathType;
+
+    /**
+     * 是否在check地址上拼接精简响应参数，对应lean-check配置
+     */
+    @Param({"true", "false"})
+    private boolean lean;
+
+    private InstanceInfo instance;
+
+    private CustomPath customPath;
+
+    @Setup
+    public void setup(){
+        this.instance = InstanceInfo.Builder.newBuilder()
+                .setAppName("consumer")
+                .setInstanceId("10.0.0.2:consumer:8080")
+                .setHostName("10.0.0.2")
+                .setIPAddr("10.0.0.2")
+                .setPort(8080)
+                .setHomePageUrl(null, "http://10.0.0.2:8080/")
+                .build();
+        if("contextPath".equals(this.customPathType)){
+            this.customPath = new CustomPath();
+            this.customPath.setServerContextPath("/consumer");
+            this.customPath.setManagementContextPath("/manage");
+        }else if("managementPort".equals(this.customPathType)){
+            this.customPath = new CustomPath();
+            this.customPath.setManagementPort(8081);
+            this.customPath.setManagementContextPath("/manage");
+        }
+    }
+
+    @Benchmark
+    public String endpointUrl(){
+        return GracefulOffineHandler.buildEndpointUrl(this.instance, this.customPath);
+    }
+
+    /**
+     * 地址拼接加上预先计算check、check/wait、evict地址
+     */
+    @Benchmark
+    public PeerTarget peerTarget(){
+        return new PeerTarget(this.instance, "consumer", GracefulOffineHandler.buildEndpointUrl(this.instance, this.customPath), PARAMS, this.lean);
+    }
+}
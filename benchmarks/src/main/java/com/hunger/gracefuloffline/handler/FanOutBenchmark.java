@@ -0,0 +1,179 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.client.CheckResult;
+import com.hunger.gracefuloffline.client.RemoteCheckClient;
+import com.hunger.gracefuloffline.client.RequestHandle;
+import com.hunger.gracefuloffline.properties.HttpClientConfig;
+import com.netflix.appinfo.InstanceInfo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 下线方：对本地桩服务并发执行一轮检查的耗时
+ * 与下线时的PeerCheck相同：每个实例的检查提交到InstanceCheckExecutor的调度线程池，
+ * 绑定RequestHandle并在timer上注册超时中止，请求预先解析的check地址
+ * 所有实例共用一个桩服务端口，连接复用情况与真实环境不同，用于比较同一环境下的前后变化
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FanOutBenchmark {
+
+    private static final byte[] TRUE = "true".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] LEAN_TRUE = {'1'};
+
+    @Param({"10", "100", "500"})
+    private int peerCount;
+
+    /**
+     * 桩服务每次响应的延迟，单位毫秒
+     */
+    @Param({"0", "5"})
+    private int latencyMillis;
+
+    @Param({"16"})
+    private int concurrency;
+
+    /**
+     * 是否使用精简响应，对应lean-check配置
+     */
+    @Param({"true", "false"})
+    private boolean lean;
+
+    private HttpServer server;
+
+    private ExecutorService serverExecutor;
+
+    private RemoteCheckClient client;
+
+    private InstanceCheckExecutor executor;
+
+    private ScheduledExecutorService timer;
+
+    private PeerTarget[] peers;
+
+    @Setup
+    public void setup() throws IOException {
+        final int latency = this.latencyMillis;
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if(latency > 0){
+                    try{
+                        Thread.sleep(latency);
+                    }catch(InterruptedException e){
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                String query = exchange.getRequestURI().getRawQuery();
+                boolean lean = query != null && query.contains("lean=true");
+                byte[] content = lean ? LEAN_TRUE : TRUE;
+                exchange.getResponseHeaders().set("Content-Type", lean ? "text/plain" : "application/json");
+                exchange.sendResponseHeaders(200, content.length);
+                OutputStream body = exchange.getResponseBody();
+                body.write(content);
+                body.close();
+            }
+        });
+        this.serverExecutor = Executors.newFixedThreadPool(64);
+        this.server.setExecutor(this.serverExecutor);
+        this.server.start();
+
+        HttpClientConfig config = new HttpClientConfig();
+        config.setMaxPerRoute(this.concurrency);
+        config.setMaxTotal(this.concurrency);
+        this.client = new RemoteCheckClient(config, 10000);
+        this.executor = new InstanceCheckExecutor(this.concurrency, 5000);
+        this.timer = Executors.newSingleThreadScheduledExecutor();
+
+        String base = "http://127.0.0.1:" + this.server.getAddress().getPort();
+        this.peers = new PeerTarget[this.peerCount];
+        for(int i = 0; i < this.peerCount; i++){
+            InstanceInfo instance = InstanceInfo.Builder.newBuilder()
+                    .setAppName("consumer")
+                    .setInstanceId("10.0.1." + i + ":consumer:8080")
+                    .setHostName("127.0.0.1")
+                    .build();
+            this.peers[i] = new PeerTarget(instance, "consumer", base + "/consumer-" + i + "/gracefuloffline",
+                    "serverName=provider&instanceId=10.0.0.1:provider:8080", this.lean);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        this.timer.shutdownNow();
+        this.executor.destroy();
+        this.client.destroy();
+        this.server.stop(0);
+        this.serverExecutor.shutdownNow();
+    }
+
+    @Benchmark
+    public AtomicReferenceArray<CheckResult> fanOut() throws InterruptedException {
+        final AtomicReferenceArray<CheckResult> results = new AtomicReferenceArray<>(this.peers.length);
+        final CountDownLatch done = new CountDownLatch(this.peers.length);
+        for(int i = 0; i < this.peers.length; i++){
+            final int index = i;
+            this.executor.getScheduler().submit(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        results.set(index, check(peers[index]));
+                    }finally{
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        done.await();
+        return results;
+    }
+
+    private CheckResult check(PeerTarget peer){
+        final RequestHandle handle = new RequestHandle();
+        ScheduledFuture<?> abort = this.timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                handle.abort();
+            }
+        }, 5000, TimeUnit.MILLISECONDS);
+        RemoteCheckClient.bind(handle);
+        try{
+            return this.client.check(peer.getCheckUri());
+        }finally{
+            RemoteCheckClient.unbind();
+            abort.cancel(false);
+        }
+    }
+}
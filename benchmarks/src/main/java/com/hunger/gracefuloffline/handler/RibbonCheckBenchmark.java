@@ -0,0 +1,151 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.metrics.GracefulOfflineMetrics;
+import com.hunger.gracefuloffline.ribbon.RibbonServerIndex;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.loadbalancer.BaseLoadBalancer;
+import com.netflix.loadbalancer.Server;
+import com.netflix.niws.loadbalancer.DiscoveryEnabledServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.cloud.netflix.ribbon.SpringClientFactory;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 被检查方：check请求在不同服务列表规模和线程数下的吞吐
+ * linearScan是引入索引前逐个遍历服务列表的实现，作为对照
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RibbonCheckBenchmark {
+
+    private static final String SERVER_NAME = "provider";
+
+    @Param({"10", "100", "1000", "10000"})
+    private int serverCount;
+
+    /**
+     * check结果缓存时间，0为不缓存
+     */
+    @Param({"0", "1000"})
+    private long cacheTtl;
+
+    private AnnotationConfigApplicationContext context;
+
+    private BaseLoadBalancer balancer;
+
+    private CheckInstanceInRibbonHandler handler;
+
+    private RibbonServerIndex index;
+
+    private String[] instanceIds;
+
+    @Setup
+    public void setup(){
+        this.balancer = new BaseLoadBalancer();
+        List<Server> servers = new ArrayList<>(this.serverCount);
+        this.instanceIds = new String[this.serverCount];
+        for(int i = 0; i < this.serverCount; i++){
+            String ip = "10.0." + (i / 250) + "." + (i % 250 + 1);
+            InstanceInfo instance = InstanceInfo.Builder.newBuilder()
+                    .setAppName(SERVER_NAME)
+                    .setInstanceId(ip + ":" + SERVER_NAME + ":8080")
+                    .setHostName(ip)
+                    .setIPAddr(ip)
+                    .setPort(8080)
+                    .build();
+            servers.add(new DiscoveryEnabledServer(instance, false));
+            this.instanceIds[i] = instance.getInstanceId().toLowerCase();
+        }
+        this.balancer.addServers(servers);
+
+        this.context = new AnnotationConfigApplicationContext();
+        this.context.getBeanFactory().registerSingleton("ribbonLoadBalancer", this.balancer);
+        this.context.refresh();
+        SpringClientFactory springClientFactory = new SpringClientFactory();
+        Field field = ReflectionUtils.findField(SpringClientFactory.class, "contexts");
+        field.setAccessible(true);
+        ((Map<String, AnnotationConfigApplicationContext>)ReflectionUtils.getField(field, springClientFactory)).put(SERVER_NAME, this.context);
+
+        this.handler = new CheckInstanceInRibbonHandler(springClientFactory, 10000, this.cacheTtl, 1024, new GracefulOfflineMetrics(), null);
+        this.index = this.handler.serverIndex(SERVER_NAME);
+    }
+
+    @TearDown
+    public void tearDown(){
+        this.context.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean check(Cursor cursor){
+        return this.handler.check(SERVER_NAME, cursor.next(this.instanceIds));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean checkContended(Cursor cursor){
+        return this.handler.check(SERVER_NAME, cursor.next(this.instanceIds));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean checkMissing(){
+        return this.handler.check(SERVER_NAME, "10.255.255.255:provider:8080");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Server findServer(Cursor cursor){
+        return this.index.find(cursor.next(this.instanceIds));
+    }
+
+    @Benchmark
+    @Threads(1)
+    public Server linearScan(Cursor cursor){
+        String instanceId = cursor.next(this.instanceIds);
+        for(Server server : this.balancer.getAllServers()){
+            if(((DiscoveryEnabledServer)server).getInstanceInfo().getInstanceId().equalsIgnoreCase(instanceId)){
+                return server;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 每个线程依次检查不同的实例
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        private int next;
+
+        String next(String[] instanceIds){
+            String instanceId = instanceIds[this.next];
+            this.next = this.next + 1 == instanceIds.length ? 0 : this.next + 1;
+            return instanceId;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.hunger.gracefuloffline.simulation;
+
+import com.netflix.appinfo.InstanceInfo;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 一个http服务承载所有模拟消费者，按路径前缀/c{index}/区分
+ * 无法连接的消费者指向一个没有监听的端口
+ */
+public class ConsumerFleet {
+
+    private static final String ENDPOINT = "gracefuloffline/";
+
+    private final SimulationOptions options;
+
+    private final List<SimulatedConsumer> consumers = new ArrayList<>();
+
+    /**
+     * 小写instanceId -> 从注册中心下线的时间
+     */
+    private final ConcurrentHashMap<String, Long> deregistered = new ConcurrentHashMap<>();
+
+    private HttpServer server;
+
+    private ExecutorService executor;
+
+    private int deadPort;
+
+    public ConsumerFleet(SimulationOptions options){
+        this.options = options;
+        Random random = new Random(options.seed);
+        List<Integer> indexes = new ArrayList<>();
+        for(int i = 0; i < options.consumers; i++){
+            indexes.add(i);
+        }
+        Collections.shuffle(indexes, random);
+        //打乱后前dead个无法连接，接下来nonUp个状态不是UP
+        Map<Integer, Integer> order = new HashMap<>();
+        for(int i = 0; i < indexes.size(); i++){
+            order.put(indexes.get(i), i);
+        }
+        for(int i = 0; i < options.consumers; i++){
+            int rank = order.get(i);
+            boolean dead = rank < options.dead;
+            InstanceInfo.InstanceStatus status = !dead && rank < options.dead + options.nonUp
+                    ? InstanceInfo.InstanceStatus.OUT_OF_SERVICE : InstanceInfo.InstanceStatus.UP;
+            int latency = options.latencyMin + random.nextInt(Math.max(1, options.latencyMax - options.latencyMin + 1));
+            int lag = options.lagMin + random.nextInt(Math.max(1, options.lagMax - options.lagMin + 1));
+            this.consumers.add(new SimulatedConsumer(i, "CONSUMER-" + (i % Math.max(1, options.apps)), latency, lag, dead, status));
+        }
+    }
+
+    public void start() throws IOException {
+        //占用后立即释放，得到一个没有监听的端口
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        this.deadPort = socket.getLocalPort();
+        socket.close();
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try{
+                    ConsumerFleet.this.handle(exchange);
+                }finally{
+                    exchange.close();
+                }
+            }
+        });
+        //长轮询会占用线程
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(this.executor);
+        this.server.start();
+    }
+
+    public void stop(){
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * 实例从注册中心下线，各消费者在各自的滞后时间后移除
+     * @param instanceId
+     */
+    public void deregister(String instanceId){
+        this.deregistered.put(instanceId.toLowerCase(), System.currentTimeMillis());
+    }
+
+    public void reset(){
+        this.deregistered.clear();
+        for(SimulatedConsumer consumer : this.consumers){
+            consumer.evicted.clear();
+        }
+    }
+
+    public List<InstanceInfo> instances(){
+        List<InstanceInfo> instances = new ArrayList<>(this.consumers.size());
+        int port = this.server.getAddress().getPort();
+        for(SimulatedConsumer consumer : this.consumers){
+            int consumerPort = consumer.dead ? this.deadPort : port;
+            instances.add(InstanceInfo.Builder.newBuilder()
+                    .setAppName(consumer.appName)
+                    .setInstanceId(consumer.instanceId())
+                    .setHostName("127.0.0.1")
+                    .setIPAddr("127.0.0.1")
+                    .setPort(consumerPort)
+                    .setHomePageUrl(null, "http://127.0.0.1:" + consumerPort + consumer.path())
+                    .setStatus(consumer.status)
+                    .build());
+        }
+        return instances;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath();
+        int slash = path.indexOf('/', 1);
+        if(!path.startsWith("/c") || slash < 0){
+            this.respond(exchange, 404, "");
+            return;
+        }
+        SimulatedConsumer consumer = this.consumers.get(Integer.parseInt(path.substring(2, slash)));
+        String action = path.substring(slash + 1);
+        if(!action.startsWith(ENDPOINT)){
+            this.respond(exchange, 404, "");
+            return;
+        }
+        action = action.substring(ENDPOINT.length());
+
+        Map<String, List<String>> params = parse(exchange.getRequestURI().getRawQuery());
+        if("POST".equals(exchange.getRequestMethod())){
+            params.putAll(parse(readBody(exchange.getRequestBody())));
+        }
+        sleep(consumer.latencyMillis);
+        if(ThreadLocalRandom.current().nextDouble() < this.options.failureRate){
+            this.respond(exchange, 500, "");
+            return;
+        }
+        String instanceId = first(params.get("instanceId"));
+        switch(action){
+            case "check":
+                this.respond(exchange, 200, String.valueOf(this.removeDelay(consumer, instanceId) == 0));
+                return;
+            case "check/wait":
+                if(!this.options.longPoll){
+                    this.respond(exchange, 404, "");
+                    return;
+                }
+                long timeout = Long.parseLong(first(params.get("timeout")));
+                long end = System.currentTimeMillis() + timeout;
+                long delay;
+                //分段等待，等待期间收到evict也能及时返回
+                while((delay = this.removeDelay(consumer, instanceId)) > 0 && System.currentTimeMillis() < end){
+                    sleep(Math.min(50, Math.min(delay, end - System.currentTimeMillis())));
+                }
+                this.respond(exchange, 200, String.valueOf(this.removeDelay(consumer, instanceId) == 0));
+                return;
+            case "check/batch":
+                StringBuilder body = new StringBuilder("[");
+                List<String> instanceIds = params.get("instanceId");
+                for(int i = 0; instanceIds != null && i < instanceIds.size(); i++){
+                    body.append(i > 0 ? "," : "").append(this.removeDelay(consumer, instanceIds.get(i)) == 0);
+                }
+                this.respond(exchange, 200, body.append("]").toString());
+                return;
+            case "evict":
+                if(!this.options.evict){
+                    this.respond(exchange, 404, "");
+                    return;
+                }
+                consumer.evicted.add(instanceId.toLowerCase());
+                this.respond(exchange, 200, "true");
+                return;
+            default:
+                this.respond(exchange, 404, "");
+        }
+    }
+
+    private long removeDelay(SimulatedConsumer consumer, String instanceId){
+        String lower = instanceId.toLowerCase();
+        return consumer.removeDelay(lower, this.deregistered.get(lower));
+    }
+
+    private void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if(bytes.length > 0){
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+    }
+
+    private static Map<String, List<String>> parse(String query) throws IOException {
+        Map<String, List<String>> params = new LinkedHashMap<>();
+        if(query == null || query.isEmpty()){
+            return params;
+        }
+        for(String pair : query.split("&")){
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), "UTF-8");
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+            List<String> values = params.get(key);
+            if(values == null){
+                values = new ArrayList<>();
+                params.put(key, values);
+            }
+            values.add(value);
+        }
+        return params;
+    }
+
+    private static String readBody(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while((n = in.read(buffer)) > 0){
+            out.write(buffer, 0, n);
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private static String first(List<String> values){
+        return values == null || values.isEmpty() ? "" : values.get(0);
+    }
+
+    private static void sleep(long millis){
+        if(millis <= 0){
+            return;
+        }
+        try{
+            Thread.sleep(millis);
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
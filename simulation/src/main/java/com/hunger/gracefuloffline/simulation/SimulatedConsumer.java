@@ -0,0 +1,61 @@
+package com.hunger.gracefuloffline.simulation;
+
+import com.netflix.appinfo.InstanceInfo;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 模拟的消费者实例：以固定的滞后时间在ribbon中移除已下线的实例
+ */
+public class SimulatedConsumer {
+
+    final int index;
+
+    final String appName;
+
+    final int latencyMillis;
+
+    final int lagMillis;
+
+    final boolean dead;
+
+    final InstanceInfo.InstanceStatus status;
+
+    /**
+     * 收到evict后立即移除的实例
+     */
+    final Set<String> evicted = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    SimulatedConsumer(int index, String appName, int latencyMillis, int lagMillis, boolean dead, InstanceInfo.InstanceStatus status){
+        this.index = index;
+        this.appName = appName;
+        this.latencyMillis = latencyMillis;
+        this.lagMillis = lagMillis;
+        this.dead = dead;
+        this.status = status;
+    }
+
+    String path(){
+        return "/c" + this.index + "/";
+    }
+
+    String instanceId(){
+        return "127.0.0.1:" + this.appName.toLowerCase() + ":c" + this.index;
+    }
+
+    /**
+     * @param deregisteredAt 实例从注册中心下线的时间，未下线为null
+     * @return 距离ribbon移除该实例还有多久，已移除返回0
+     */
+    long removeDelay(String instanceId, Long deregisteredAt){
+        if(this.evicted.contains(instanceId)){
+            return 0;
+        }
+        if(deregisteredAt == null){
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, deregisteredAt + this.lagMillis - System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,172 @@
+package com.hunger.gracefuloffline.simulation;
+
+import com.hunger.gracefuloffline.handler.GracefulOffineHandler;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.shared.Applications;
+import org.springframework.boot.Banner;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ApplicationContextInitializer;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 本地大规模下线模拟：数百个模拟消费者加上使用真实GracefulOfflineAutoConfiguration的被下线应用，
+ * 统计从调用下线到应用关闭的耗时分位数
+ *
+ * mvn -f simulation/pom.xml exec:java -Dexec.args="--consumers=500 --runs=20 --endpoints.graceful.offline.wait=60"
+ */
+public class SimulationMain {
+
+    private static final String APP_NAME = "PROVIDER";
+
+    public static void main(String[] args) throws Exception {
+        SimulationOptions options = SimulationOptions.parse(args);
+        System.out.println("simulation: " + options);
+
+        ConsumerFleet fleet = new ConsumerFleet(options);
+        fleet.start();
+        List<Long> durations = new ArrayList<>();
+        Map<String, Integer> outcomes = new TreeMap<>();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, options.subjects));
+        try{
+            for(int run = 0; run < options.runs; run++){
+                fleet.reset();
+                List<InstanceInfo> subjects = new ArrayList<>();
+                for(int i = 0; i < options.subjects; i++){
+                    subjects.add(subject(run, i));
+                }
+                Applications applications = StubEurekaClient.registry(fleet.instances(), subjects);
+
+                List<Subject> started = new ArrayList<>();
+                for(InstanceInfo instance : subjects){
+                    started.add(new Subject(instance, StubEurekaClient.create(instance, applications, fleet), options));
+                }
+                List<Future<Result>> futures = new ArrayList<>();
+                for(final Subject subject : started){
+                    futures.add(executor.submit(new Callable<Result>() {
+                        @Override
+                        public Result call() {
+                            return subject.shutdown();
+                        }
+                    }));
+                }
+                for(Future<Result> future : futures){
+                    Result result = future.get();
+                    durations.add(result.millis);
+                    Integer count = outcomes.get(result.outcome);
+                    outcomes.put(result.outcome, count == null ? 1 : count + 1);
+                    System.out.println("run " + run + ": " + result.outcome + " after " + result.millis + " ms");
+                }
+            }
+        }finally{
+            executor.shutdownNow();
+            fleet.stop();
+        }
+        report(durations, outcomes);
+    }
+
+    private static InstanceInfo subject(int run, int index){
+        String instanceId = "127.0.0.1:" + APP_NAME.toLowerCase() + ":" + (9000 + index) + "-" + run;
+        return InstanceInfo.Builder.newBuilder()
+                .setAppName(APP_NAME)
+                .setInstanceId(instanceId)
+                .setHostName("127.0.0.1")
+                .setIPAddr("127.0.0.1")
+                .setPort(9000 + index)
+                .setHomePageUrl(null, "http://127.0.0.1:" + (9000 + index) + "/")
+                .build();
+    }
+
+    private static void report(List<Long> durations, Map<String, Integer> outcomes){
+        Collections.sort(durations);
+        System.out.println("time to exit (ms), " + durations.size() + " shutdowns: "
+                + "p50=" + percentile(durations, 0.5)
+                + " p90=" + percentile(durations, 0.9)
+                + " p99=" + percentile(durations, 0.99)
+                + " max=" + (durations.isEmpty() ? 0 : durations.get(durations.size() - 1)));
+        System.out.println("outcomes: " + outcomes);
+    }
+
+    private static long percentile(List<Long> sorted, double p){
+        if(sorted.isEmpty()){
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.size()) - 1;
+        return sorted.get(Math.max(0, Math.min(index, sorted.size() - 1)));
+    }
+
+    /**
+     * 一个被下线的应用实例
+     */
+    private static class Subject {
+
+        private final ConfigurableApplicationContext context;
+
+        private final GracefulOffineHandler handler;
+
+        Subject(InstanceInfo instance, final EurekaClient eurekaClient, SimulationOptions options){
+            List<String> args = new ArrayList<>(options.springArgs);
+            this.context = new SpringApplicationBuilder(SubjectApplication.class)
+                    .web(false)
+                    .bannerMode(Banner.Mode.OFF)
+                    .properties("eureka.client.enabled=false",
+                            "spring.application.name=" + instance.getAppName().toLowerCase(),
+                            "logging.level.com.hunger.gracefuloffline=WARN")
+                    .initializers(new ApplicationContextInitializer<ConfigurableApplicationContext>() {
+                        @Override
+                        public void initialize(ConfigurableApplicationContext applicationContext) {
+                            applicationContext.getBeanFactory().registerSingleton("eurekaClient", eurekaClient);
+                        }
+                    })
+                    .run(args.toArray(new String[args.size()]));
+            this.handler = this.context.getBean(GracefulOffineHandler.class);
+            this.handler.refreshPlan();
+        }
+
+        Result shutdown(){
+            long start = System.currentTimeMillis();
+            this.handler.shutdown();
+            String outcome = "closed";
+            while(this.context.isActive()){
+                Object phase = this.handler.status().get("phase");
+                if("timeout".equals(phase)){
+                    outcome = "timeout";
+                    break;
+                }
+                try{
+                    Thread.sleep(20);
+                }catch(InterruptedException e){
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            long millis = System.currentTimeMillis() - start;
+            if(this.context.isActive()){
+                this.context.close();
+            }
+            return new Result(outcome, millis);
+        }
+    }
+
+    private static class Result {
+
+        final String outcome;
+
+        final long millis;
+
+        Result(String outcome, long millis){
+            this.outcome = outcome;
+            this.millis = millis;
+        }
+    }
+}
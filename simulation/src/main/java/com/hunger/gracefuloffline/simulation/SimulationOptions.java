@@ -0,0 +1,120 @@
+package com.hunger.gracefuloffline.simulation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 模拟参数，命令行格式 --key=value
+ * 以--endpoints.、--logging.开头的参数原样传给被下线的应用
+ */
+public class SimulationOptions {
+
+    /**
+     * 模拟的消费者实例数
+     */
+    int consumers = 300;
+
+    /**
+     * 消费者分布的服务数
+     */
+    int apps = 30;
+
+    /**
+     * 重复下线的轮数，耗时分位数按所有轮次统计
+     */
+    int runs = 10;
+
+    /**
+     * 每轮同时下线的实例数
+     */
+    int subjects = 1;
+
+    long seed = 1;
+
+    /**
+     * 消费者响应check的延迟范围，单位毫秒
+     */
+    int latencyMin = 1;
+
+    int latencyMax = 20;
+
+    /**
+     * 消费者ribbon列表在下线后多久移除该实例，模拟eureka缓存和ribbon刷新的滞后，单位毫秒
+     */
+    int lagMin = 0;
+
+    int lagMax = 30000;
+
+    /**
+     * check返回500的比例
+     */
+    double failureRate = 0.01;
+
+    /**
+     * 无法连接的消费者数
+     */
+    int dead = 5;
+
+    /**
+     * 注册表中状态不是UP的消费者数
+     */
+    int nonUp = 5;
+
+    /**
+     * 消费者是否响应evict立即移除
+     */
+    boolean evict = true;
+
+    /**
+     * 消费者是否支持check/wait长轮询
+     */
+    boolean longPoll = true;
+
+    final List<String> springArgs = new ArrayList<>();
+
+    static SimulationOptions parse(String[] args){
+        SimulationOptions options = new SimulationOptions();
+        Map<String, String> values = new HashMap<>();
+        for(String arg : args){
+            if(arg.startsWith("--endpoints.") || arg.startsWith("--logging.")){
+                options.springArgs.add(arg);
+                continue;
+            }
+            if(!arg.startsWith("--") || arg.indexOf('=') < 0){
+                throw new IllegalArgumentException("unknown argument: " + arg);
+            }
+            values.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        for(Map.Entry<String, String> entry : values.entrySet()){
+            String value = entry.getValue();
+            switch(entry.getKey()){
+                case "consumers": options.consumers = Integer.parseInt(value); break;
+                case "apps": options.apps = Integer.parseInt(value); break;
+                case "runs": options.runs = Integer.parseInt(value); break;
+                case "subjects": options.subjects = Integer.parseInt(value); break;
+                case "seed": options.seed = Long.parseLong(value); break;
+                case "latency-min": options.latencyMin = Integer.parseInt(value); break;
+                case "latency-max": options.latencyMax = Integer.parseInt(value); break;
+                case "lag-min": options.lagMin = Integer.parseInt(value); break;
+                case "lag-max": options.lagMax = Integer.parseInt(value); break;
+                case "failure-rate": options.failureRate = Double.parseDouble(value); break;
+                case "dead": options.dead = Integer.parseInt(value); break;
+                case "non-up": options.nonUp = Integer.parseInt(value); break;
+                case "evict": options.evict = Boolean.parseBoolean(value); break;
+                case "long-poll": options.longPoll = Boolean.parseBoolean(value); break;
+                default: throw new IllegalArgumentException("unknown argument: --" + entry.getKey());
+            }
+        }
+        return options;
+    }
+
+    @Override
+    public String toString() {
+        return "consumers=" + consumers + ", apps=" + apps + ", runs=" + runs + ", subjects=" + subjects
+                + ", latency=" + latencyMin + ".." + latencyMax + "ms, lag=" + lagMin + ".." + lagMax + "ms"
+                + ", failureRate=" + failureRate + ", dead=" + dead + ", nonUp=" + nonUp
+                + ", evict=" + evict + ", longPoll=" + longPoll + ", spring=" + springArgs;
+    }
+}
@@ -0,0 +1,112 @@
+package com.hunger.gracefuloffline.simulation;
+
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.EurekaEventListener;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * 代替eureka客户端的本地注册表：返回固定的注册表，shutdown时通知模拟消费者该实例已下线
+ */
+public class StubEurekaClient implements InvocationHandler {
+
+    private final ApplicationInfoManager applicationInfoManager;
+
+    private final Applications applications;
+
+    private final ConsumerFleet fleet;
+
+    private final List<EurekaEventListener> listeners = new CopyOnWriteArrayList<>();
+
+    private StubEurekaClient(InstanceInfo self, Applications applications, ConsumerFleet fleet){
+        this.applicationInfoManager = new ApplicationInfoManager(null, self);
+        this.applications = applications;
+        this.fleet = fleet;
+    }
+
+    /**
+     * @param self 被下线的实例
+     * @param applications 包含self的注册表
+     * @param fleet
+     * @return
+     */
+    public static EurekaClient create(InstanceInfo self, Applications applications, ConsumerFleet fleet){
+        return (EurekaClient) Proxy.newProxyInstance(StubEurekaClient.class.getClassLoader(), new Class<?>[]{EurekaClient.class},
+                new StubEurekaClient(self, applications, fleet));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) {
+        switch(method.getName()){
+            case "getApplicationInfoManager":
+                return this.applicationInfoManager;
+            case "getApplications":
+                return this.applications;
+            case "getApplication":
+                return this.applications.getRegisteredApplications((String) args[0]);
+            case "registerEventListener":
+                this.listeners.add((EurekaEventListener) args[0]);
+                return null;
+            case "unregisterEventListener":
+                return this.listeners.remove(args[0]);
+            case "shutdown":
+                this.fleet.deregister(this.applicationInfoManager.getInfo().getInstanceId());
+                return null;
+            case "toString":
+                return "StubEurekaClient(" + this.applicationInfoManager.getInfo().getInstanceId() + ")";
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            default:
+                return defaultValue(method.getReturnType());
+        }
+    }
+
+    private static Object defaultValue(Class<?> type){
+        if(type == boolean.class){
+            return false;
+        }
+        if(type == int.class){
+            return 0;
+        }
+        if(type == long.class){
+            return 0L;
+        }
+        return null;
+    }
+
+    /**
+     * 消费者和被下线服务组成的注册表
+     * @param consumers
+     * @param subjects
+     * @return
+     */
+    public static Applications registry(List<InstanceInfo> consumers, List<InstanceInfo> subjects){
+        Applications applications = new Applications();
+        for(InstanceInfo instance : consumers){
+            add(applications, instance);
+        }
+        for(InstanceInfo instance : subjects){
+            add(applications, instance);
+        }
+        return applications;
+    }
+
+    private static void add(Applications applications, InstanceInfo instance){
+        Application application = applications.getRegisteredApplications(instance.getAppName());
+        if(application == null){
+            application = new Application(instance.getAppName());
+            applications.addApplication(application);
+        }
+        application.addInstance(instance);
+    }
+}
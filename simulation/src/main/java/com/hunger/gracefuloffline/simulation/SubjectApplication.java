@@ -0,0 +1,12 @@
+package com.hunger.gracefuloffline.simulation;
+
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 被下线的应用，只使用自动配置，eureka客户端由StubEurekaClient代替
+ */
+@Configuration
+@EnableAutoConfiguration
+public class SubjectApplication {
+}
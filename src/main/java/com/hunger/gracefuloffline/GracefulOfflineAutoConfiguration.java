@@ -1,45 +1,160 @@
 package com.hunger.gracefuloffline;
 
+import com.hunger.gracefuloffline.client.RemoteCheckClient;
+import com.hunger.gracefuloffline.drain.DrainCoordinator;
+import com.hunger.gracefuloffline.drain.HystrixDrainParticipant;
+import com.hunger.gracefuloffline.drain.InFlightRequestFilter;
+import com.hunger.gracefuloffline.drain.InFlightRequestInterceptor;
+import com.hunger.gracefuloffline.drain.InFlightRequestTracker;
 import com.hunger.gracefuloffline.endpoint.GracefulOfflineEndpoint;
 import com.hunger.gracefuloffline.endpoint.mvc.GracefulOfflineMvcEndpoint;
+import com.hunger.gracefuloffline.handler.AggregateCheckHandler;
 import com.hunger.gracefuloffline.handler.CheckInstanceInRibbonHandler;
 import com.hunger.gracefuloffline.handler.GracefulOffineHandler;
+import com.hunger.gracefuloffline.handler.GracefulOnlineHandler;
+import com.hunger.gracefuloffline.handler.InstanceCheckExecutor;
+import com.hunger.gracefuloffline.handler.RegistryRefreshHandler;
+import com.hunger.gracefuloffline.handler.ZoneAwareness;
+import com.hunger.gracefuloffline.metrics.GracefulOfflineMetrics;
 import com.hunger.gracefuloffline.properties.GracefulOfflineProperties;
+import com.hunger.gracefuloffline.registry.ConsumerIndex;
+import com.hunger.gracefuloffline.registry.RollingOfflineCoordinator;
+import com.hunger.gracefuloffline.registry.StartingStatusPostProcessor;
+import com.hunger.gracefuloffline.ribbon.RibbonClientPublisher;
+import com.hunger.gracefuloffline.ribbon.RibbonClientPublisherConfiguration;
 import com.netflix.discovery.DiscoveryClient;
+import com.netflix.hystrix.HystrixThreadPoolMetrics;
 import com.netflix.discovery.EurekaClient;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.actuate.autoconfigure.ManagementServerProperties;
 import org.springframework.boot.actuate.condition.ConditionalOnEnabledEndpoint;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.cloud.netflix.ribbon.RibbonClients;
 import org.springframework.cloud.netflix.ribbon.SpringClientFactory;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.core.Ordered;
+import org.springframework.core.env.Environment;
+import org.springframework.web.servlet.DispatcherServlet;
+import org.springframework.web.servlet.config.annotation.InterceptorRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
 
 @Configuration
 @ConditionalOnProperty(prefix = "endpoints.graceful.offline", name = "enabled", havingValue = "true", matchIfMissing = true)
 @EnableConfigurationProperties(GracefulOfflineProperties.class)
 public class GracefulOfflineAutoConfiguration {
     
+    @Bean
+    @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
+    public GracefulOfflineMetrics gracefulOfflineMetrics(){
+        return new GracefulOfflineMetrics();
+    }
+
     @Bean
     @ConditionalOnClass(SpringClientFactory.class)
     @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
-    public CheckInstanceInRibbonHandler checkInstanceInRibbonHandler(SpringClientFactory springClientFactory){
-        return new CheckInstanceInRibbonHandler(springClientFactory);
+    public CheckInstanceInRibbonHandler checkInstanceInRibbonHandler(SpringClientFactory springClientFactory, GracefulOfflineProperties properties, GracefulOfflineMetrics metrics,
+                                                                     ObjectProvider<EurekaClient> discoveryClient){
+        return new CheckInstanceInRibbonHandler(springClientFactory, properties.getLongPollTimeout(), properties.getCheckCacheTtl(), properties.getCheckCacheSize(), metrics,
+                discoveryClient.getIfAvailable());
+    }
+
+    @Bean
+    @ConditionalOnClass(DiscoveryClient.class)
+    @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
+    public InstanceCheckExecutor instanceCheckExecutor(GracefulOfflineProperties properties){
+        return new InstanceCheckExecutor(properties.getCheckConcurrency(), properties.getCheckTimeout());
+    }
+
+    @Bean
+    @ConditionalOnClass(DiscoveryClient.class)
+    @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
+    public RemoteCheckClient remoteCheckClient(GracefulOfflineProperties properties){
+        return new RemoteCheckClient(properties.getHttpClient(), properties.getLongPollTimeout());
+    }
+
+    @Bean
+    @ConditionalOnClass(DiscoveryClient.class)
+    @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
+    public GracefulOffineHandler gracefulOffineHandler(EurekaClient discoveryClient, GracefulOfflineProperties properties, InstanceCheckExecutor instanceCheckExecutor, RemoteCheckClient remoteCheckClient,
+                                                       ObjectProvider<ConsumerIndex> consumerIndex, DrainCoordinator drainCoordinator,
+                                                       ObjectProvider<RollingOfflineCoordinator> rollingCoordinator, ObjectProvider<ZoneAwareness> zoneAwareness,
+                                                       GracefulOfflineMetrics metrics){
+        return new GracefulOffineHandler(discoveryClient, properties, instanceCheckExecutor, remoteCheckClient, consumerIndex.getIfAvailable(), drainCoordinator,
+                rollingCoordinator.getIfAvailable(), zoneAwareness.getIfAvailable(), metrics);
+    }
+
+    @Bean
+    @ConditionalOnClass(DiscoveryClient.class)
+    @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
+    @ConditionalOnProperty(prefix = "endpoints.graceful.offline", name = "zone-aware", havingValue = "true")
+    public ZoneAwareness zoneAwareness(EurekaClient discoveryClient, GracefulOfflineProperties properties){
+        return new ZoneAwareness(discoveryClient, properties);
     }
 
     @Bean
     @ConditionalOnClass(DiscoveryClient.class)
     @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
-    public GracefulOffineHandler gracefulOffineHandler(EurekaClient discoveryClient, GracefulOfflineProperties properties){
-        return new GracefulOffineHandler(discoveryClient, properties);
+    @ConditionalOnProperty(prefix = "endpoints.graceful.offline", name = "rolling-max-draining")
+    public RollingOfflineCoordinator rollingOfflineCoordinator(EurekaClient discoveryClient, GracefulOfflineProperties properties){
+        //超过检查、等待请求完成和一轮注册表同步的下线状态视为残留
+        long staleMillis = properties.getWait() * 1000L + properties.getDrainTimeout() + 90000L;
+        return new RollingOfflineCoordinator(discoveryClient, properties.getRollingMaxDraining(), staleMillis);
+    }
+
+    @Bean
+    public DrainCoordinator drainCoordinator(GracefulOfflineProperties properties){
+        return new DrainCoordinator(properties.getDrainTimeout(), properties.getDrainExecutors());
     }
     
+    @Bean
+    @ConditionalOnClass(DiscoveryClient.class)
+    @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
+    @ConditionalOnBean(CheckInstanceInRibbonHandler.class)
+    public AggregateCheckHandler aggregateCheckHandler(EurekaClient discoveryClient, CheckInstanceInRibbonHandler checkInstanceInRibbonHandler, RemoteCheckClient remoteCheckClient,
+                                                       InstanceCheckExecutor instanceCheckExecutor, GracefulOfflineProperties properties){
+        return new AggregateCheckHandler(discoveryClient, checkInstanceInRibbonHandler, remoteCheckClient, instanceCheckExecutor, properties);
+    }
+
+    @Bean
+    @ConditionalOnClass(DiscoveryClient.class)
+    @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
+    @ConditionalOnBean(CheckInstanceInRibbonHandler.class)
+    public RegistryRefreshHandler registryRefreshHandler(EurekaClient discoveryClient, CheckInstanceInRibbonHandler checkInstanceInRibbonHandler, GracefulOfflineProperties properties){
+        return new RegistryRefreshHandler(discoveryClient, checkInstanceInRibbonHandler, properties.getRefreshInterval());
+    }
+
+    @Bean
+    @ConditionalOnClass(DiscoveryClient.class)
+    @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
+    @ConditionalOnProperty(prefix = "endpoints.graceful.offline", name = "online", havingValue = "true")
+    public GracefulOnlineHandler gracefulOnlineHandler(EurekaClient discoveryClient, GracefulOffineHandler gracefulOffineHandler, RemoteCheckClient remoteCheckClient,
+                                                       InstanceCheckExecutor instanceCheckExecutor, GracefulOfflineProperties properties, Environment environment,
+                                                       ObjectProvider<ServerProperties> serverProperties){
+        return new GracefulOnlineHandler(discoveryClient, gracefulOffineHandler, remoteCheckClient, instanceCheckExecutor, properties, environment,
+                serverProperties.getIfAvailable());
+    }
+
+    @Bean
+    @ConditionalOnClass(DiscoveryClient.class)
+    @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
+    @ConditionalOnProperty(prefix = "endpoints.graceful.offline", name = "online", havingValue = "true")
+    public static StartingStatusPostProcessor startingStatusPostProcessor(){
+        return new StartingStatusPostProcessor();
+    }
+
     @Bean
     @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
     @ConditionalOnBean(value = {CheckInstanceInRibbonHandler.class, GracefulOffineHandler.class})
-    public GracefulOfflineEndpoint endpoint(CheckInstanceInRibbonHandler checkInstanceInRibbonHandler, GracefulOffineHandler gracefulOffineHandler){
-        return new GracefulOfflineEndpoint(checkInstanceInRibbonHandler, gracefulOffineHandler);
+    public GracefulOfflineEndpoint endpoint(CheckInstanceInRibbonHandler checkInstanceInRibbonHandler, GracefulOffineHandler gracefulOffineHandler,
+                                           ObjectProvider<AggregateCheckHandler> aggregateCheckHandler, ObjectProvider<RegistryRefreshHandler> registryRefreshHandler){
+        return new GracefulOfflineEndpoint(checkInstanceInRibbonHandler, gracefulOffineHandler, aggregateCheckHandler.getIfAvailable(), registryRefreshHandler.getIfAvailable());
     }
     
     @Bean
@@ -48,4 +163,97 @@ public class GracefulOfflineAutoConfiguration {
     public GracefulOfflineMvcEndpoint mvcEndpoint(GracefulOfflineEndpoint endpoint){
         return new GracefulOfflineMvcEndpoint(endpoint);
     }
+
+    /**
+     * 统计正在处理的请求，下线时等待其完成后再关闭应用
+     */
+    @Configuration
+    @ConditionalOnWebApplication
+    @ConditionalOnClass(DispatcherServlet.class)
+    protected static class InFlightRequestConfiguration extends WebMvcConfigurerAdapter {
+
+        private final InFlightRequestTracker inFlightRequestTracker = new InFlightRequestTracker();
+
+        @Bean
+        public InFlightRequestTracker inFlightRequestTracker(){
+            return this.inFlightRequestTracker;
+        }
+
+        @Bean
+        public FilterRegistrationBean inFlightRequestFilter(ObjectProvider<GracefulOfflineMvcEndpoint> mvcEndpoint, ObjectProvider<ManagementServerProperties> management,
+                                                            ObjectProvider<ServerProperties> server){
+            String endpointPath = endpointPath(mvcEndpoint.getIfAvailable(), management.getIfAvailable(), server.getIfAvailable());
+            FilterRegistrationBean registration = new FilterRegistrationBean(new InFlightRequestFilter(this.inFlightRequestTracker, endpointPath));
+            registration.setName("gracefulOfflineInFlightRequestFilter");
+            registration.setAsyncSupported(true);
+            registration.setOrder(Ordered.HIGHEST_PRECEDENCE);
+            return registration;
+        }
+
+        @Override
+        public void addInterceptors(InterceptorRegistry registry) {
+            registry.addInterceptor(new InFlightRequestInterceptor(this.inFlightRequestTracker));
+        }
+
+        /**
+         * 与buildEndpointUrl相同的拼接方式，server的context-path由请求提供
+         * 单独的管理端口时端点请求不经过本应用的filter，返回null
+         */
+        static String endpointPath(GracefulOfflineMvcEndpoint mvcEndpoint, ManagementServerProperties management, ServerProperties server){
+            if(mvcEndpoint == null){
+                return null;
+            }
+            String contextPath = "";
+            if(management != null){
+                Integer managementPort = management.getPort();
+                Integer serverPort = server == null ? null : server.getPort();
+                if(managementPort != null && managementPort != 0 && !managementPort.equals(serverPort)){
+                    return null;
+                }
+                contextPath = management.getContextPath();
+            }
+            return contextPath + mvcEndpoint.getPath();
+        }
+    }
+
+    /**
+     * 下线时等待hystrix线程池中的命令完成
+     */
+    @Configuration
+    @ConditionalOnClass(HystrixThreadPoolMetrics.class)
+    @ConditionalOnProperty(prefix = "endpoints.graceful.offline", name = "drain-hystrix", havingValue = "true", matchIfMissing = true)
+    protected static class HystrixDrainConfiguration {
+
+        @Bean
+        public HystrixDrainParticipant hystrixDrainParticipant(){
+            return new HystrixDrainParticipant(0);
+        }
+    }
+
+    /**
+     * 发布本服务的ribbon客户端，并维护其他服务的消费者索引
+     */
+    @Configuration
+    @ConditionalOnClass(DiscoveryClient.class)
+    @ConditionalOnProperty(prefix = "endpoints.graceful.offline", name = "consumer-index", havingValue = "true")
+    protected static class ConsumerIndexConfiguration {
+
+        @Bean
+        @ConditionalOnEnabledEndpoint("endpoints.graceful.offline")
+        public ConsumerIndex consumerIndex(EurekaClient discoveryClient){
+            return new ConsumerIndex(discoveryClient);
+        }
+    }
+
+    @Configuration
+    @ConditionalOnClass({DiscoveryClient.class, SpringClientFactory.class})
+    @ConditionalOnProperty(prefix = "endpoints.graceful.offline", name = "consumer-index", havingValue = "true")
+    @RibbonClients(defaultConfiguration = RibbonClientPublisherConfiguration.class)
+    protected static class RibbonClientPublisherAutoConfiguration {
+
+        @Bean
+        public RibbonClientPublisher ribbonClientPublisher(EurekaClient discoveryClient){
+            return new RibbonClientPublisher(discoveryClient);
+        }
+    }
 }
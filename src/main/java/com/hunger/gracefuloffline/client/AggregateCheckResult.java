@@ -0,0 +1,61 @@
+package com.hunger.gracefuloffline.client;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * 聚合检查的结果：委托实例检查自身和同服务其他实例后返回的逐个实例结果
+ */
+public class AggregateCheckResult {
+
+    /**
+     * 委托实例未能完成聚合检查的原因，完成时为null
+     */
+    private final CheckResult failure;
+
+    /**
+     * instanceId -> 检查结果
+     */
+    private final Map<String, CheckResult> instances;
+
+    private AggregateCheckResult(CheckResult failure, Map<String, CheckResult> instances){
+        this.failure = failure;
+        this.instances = instances;
+    }
+
+    public static AggregateCheckResult of(Map<String, CheckResult> instances){
+        return new AggregateCheckResult(null, Collections.unmodifiableMap(instances));
+    }
+
+    public static AggregateCheckResult failed(CheckResult failure){
+        return new AggregateCheckResult(failure, Collections.<String, CheckResult>emptyMap());
+    }
+
+    public boolean isFailed(){
+        return this.failure != null;
+    }
+
+    public CheckResult getFailure() {
+        return failure;
+    }
+
+    public Map<String, CheckResult> getInstances() {
+        return instances;
+    }
+
+    /**
+     * 失败原因，或所有实例中第一个不是ABSENT的结果，全部移除时为ABSENT
+     * @return
+     */
+    public CheckResult summary(){
+        if(this.failure != null){
+            return this.failure;
+        }
+        for(CheckResult result : this.instances.values()){
+            if(result != CheckResult.ABSENT){
+                return result;
+            }
+        }
+        return CheckResult.ABSENT;
+    }
+}
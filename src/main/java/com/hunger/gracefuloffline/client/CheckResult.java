@@ -0,0 +1,27 @@
+package com.hunger.gracefuloffline.client;
+
+/**
+ * 检查其他服务实例的结果分类
+ */
+public enum CheckResult {
+
+    /**
+     * 对方ribbon列表中已不存在当前服务实例
+     */
+    ABSENT,
+
+    /**
+     * 对方仍在使用当前服务实例，或返回了无法识别的结果
+     */
+    IN_USE,
+
+    /**
+     * 无法连接对方：连接被拒绝、连接超时、无法解析主机等
+     */
+    UNREACHABLE,
+
+    /**
+     * 对方没有gracefuloffline端点(未引入本starter或端点未开启)
+     */
+    NOT_INSTALLED
+}
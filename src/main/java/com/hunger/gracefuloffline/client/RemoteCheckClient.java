@@ -0,0 +1,409 @@
+package com.hunger.gracefuloffline.client;
+
+import com.hunger.gracefuloffline.properties.HttpClientConfig;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.HttpMessageConverterExtractor;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 调用其他服务实例gracefuloffline端点的客户端
+ * 所有检查共用一个连接池，重复检查同一实例时复用keep-alive连接
+ */
+public class RemoteCheckClient implements DisposableBean {
+
+    /**
+     * 当前线程发出的请求关联的RequestHandle
+     */
+    private static final ThreadLocal<RequestHandle> HANDLE = new ThreadLocal<>();
+
+    private final CloseableHttpClient httpClient;
+
+    private final RestTemplate restTemplate;
+
+    /**
+     * 长轮询使用的RestTemplate，与restTemplate共用连接池，读超时时间更长
+     */
+    private final RestTemplate longPollRestTemplate;
+
+    private final ResponseExtractor<CheckResult> checkExtractor;
+
+    private final ResponseExtractor<CheckResult> batchCheckExtractor;
+
+    private final ResponseExtractor<Boolean> commandExtractor;
+
+    private final ResponseExtractor<AggregateCheckResult> aggregateExtractor;
+
+    public RemoteCheckClient(HttpClientConfig config, int longPollTimeout){
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(config.getMaxTotal());
+        connectionManager.setDefaultMaxPerRoute(config.getMaxPerRoute());
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(config.getConnectTimeout())
+                .setSocketTimeout(config.getReadTimeout())
+                .setConnectionRequestTimeout(config.getConnectionRequestTimeout())
+                .build();
+        this.httpClient = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(new DefaultKeepAliveStrategy(config.getKeepAlive()))
+                .evictIdleConnections(config.getKeepAlive(), TimeUnit.MILLISECONDS)
+                .evictExpiredConnections()
+                .disableCookieManagement()
+                .build();
+
+        //状态码由extractor分类，不抛出异常
+        NoErrorResponseErrorHandler errorHandler = new NoErrorResponseErrorHandler();
+        this.restTemplate = new RestTemplate(new AbortableRequestFactory(this.httpClient));
+        this.restTemplate.setErrorHandler(errorHandler);
+        HttpComponentsClientHttpRequestFactory longPollRequestFactory = new AbortableRequestFactory(this.httpClient);
+        longPollRequestFactory.setReadTimeout(longPollTimeout + config.getReadTimeout());
+        this.longPollRestTemplate = new RestTemplate(longPollRequestFactory);
+        this.longPollRestTemplate.setErrorHandler(errorHandler);
+
+        final HttpMessageConverterExtractor<Boolean> messageConverterExtractor = new HttpMessageConverterExtractor<>(Boolean.class, this.restTemplate.getMessageConverters());
+        this.checkExtractor = new ResponseExtractor<CheckResult>() {
+            @Override
+            public CheckResult extractData(ClientHttpResponse clientHttpResponse) throws IOException {
+                int status = clientHttpResponse.getRawStatusCode();
+                if(status >= 200 && status < 300){
+                    Boolean notExist = readFlag(clientHttpResponse);
+                    return Boolean.TRUE.equals(notExist) ? CheckResult.ABSENT : CheckResult.IN_USE;
+                }
+                if(status == HttpStatus.NOT_FOUND.value()){
+                    return CheckResult.NOT_INSTALLED;
+                }
+                return CheckResult.IN_USE;
+            }
+        };
+        final HttpMessageConverterExtractor<Boolean[]> batchConverterExtractor = new HttpMessageConverterExtractor<>(Boolean[].class, this.restTemplate.getMessageConverters());
+        this.batchCheckExtractor = new ResponseExtractor<CheckResult>() {
+            @Override
+            public CheckResult extractData(ClientHttpResponse clientHttpResponse) throws IOException {
+                int status = clientHttpResponse.getRawStatusCode();
+                if(status >= 200 && status < 300){
+                    Boolean[] notExists = batchConverterExtractor.extractData(clientHttpResponse);
+                    if(notExists == null){
+                        return CheckResult.IN_USE;
+                    }
+                    for(Boolean notExist : notExists){
+                        if(!Boolean.TRUE.equals(notExist)){
+                            return CheckResult.IN_USE;
+                        }
+                    }
+                    return CheckResult.ABSENT;
+                }
+                if(status == HttpStatus.NOT_FOUND.value() || status == HttpStatus.METHOD_NOT_ALLOWED.value()){
+                    return CheckResult.NOT_INSTALLED;
+                }
+                return CheckResult.IN_USE;
+            }
+        };
+        final HttpMessageConverterExtractor<Map> mapConverterExtractor = new HttpMessageConverterExtractor<>(Map.class, this.restTemplate.getMessageConverters());
+        this.aggregateExtractor = new ResponseExtractor<AggregateCheckResult>() {
+            @Override
+            public AggregateCheckResult extractData(ClientHttpResponse clientHttpResponse) throws IOException {
+                int status = clientHttpResponse.getRawStatusCode();
+                if(status == HttpStatus.NOT_FOUND.value() || status == HttpStatus.METHOD_NOT_ALLOWED.value()){
+                    return AggregateCheckResult.failed(CheckResult.NOT_INSTALLED);
+                }
+                if(status < 200 || status >= 300){
+                    return AggregateCheckResult.failed(CheckResult.IN_USE);
+                }
+                Map<?, ?> body = mapConverterExtractor.extractData(clientHttpResponse);
+                Object instances = body == null ? null : body.get("instances");
+                if(!(instances instanceof Map)){
+                    return AggregateCheckResult.failed(CheckResult.IN_USE);
+                }
+                Map<String, CheckResult> results = new LinkedHashMap<>();
+                for(Map.Entry<?, ?> entry : ((Map<?, ?>)instances).entrySet()){
+                    results.put(String.valueOf(entry.getKey()), parse(entry.getValue()));
+                }
+                return AggregateCheckResult.of(results);
+            }
+        };
+        this.commandExtractor = new ResponseExtractor<Boolean>() {
+            @Override
+            public Boolean extractData(ClientHttpResponse clientHttpResponse) throws IOException {
+                int status = clientHttpResponse.getRawStatusCode();
+                if(status >= 200 && status < 300){
+                    return messageConverterExtractor.extractData(clientHttpResponse);
+                }
+                return null;
+            }
+        };
+    }
+
+    /**
+     * 调用check端点
+     * @param url
+     * @return
+     */
+    public CheckResult check(String url){
+        return this.check(URI.create(url));
+    }
+
+    /**
+     * 调用check端点，使用预先解析的地址
+     * @param uri
+     * @return
+     */
+    public CheckResult check(URI uri){
+        try{
+            return this.restTemplate.execute(uri, HttpMethod.GET, null, this.checkExtractor);
+        }catch(ResourceAccessException e){
+            return classify(e);
+        }
+    }
+
+    /**
+     * 之后当前线程发出的请求都可以通过handle中止，所有RemoteCheckClient共用
+     * @param handle
+     */
+    public static void bind(RequestHandle handle){
+        HANDLE.set(handle);
+    }
+
+    public static void unbind(){
+        HANDLE.remove();
+    }
+
+    /**
+     * 直接从响应体读取单个布尔值，不经过消息转换器
+     * 兼容精简格式的1/0和json格式的true/false
+     * @return 无法识别时返回null
+     */
+    static Boolean readFlag(ClientHttpResponse response) throws IOException {
+        InputStream body = response.getBody();
+        if(body == null){
+            return null;
+        }
+        for(int i = 0; i < 16; i++){
+            int b = body.read();
+            switch(b){
+                case '1':
+                case 't':
+                    return Boolean.TRUE;
+                case '0':
+                case 'f':
+                    return Boolean.FALSE;
+                case ' ':
+                case '\t':
+                case '\r':
+                case '\n':
+                case '"':
+                    continue;
+                default:
+                    return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 调用check/wait长轮询端点
+     * @param url
+     * @return 对方不支持长轮询时返回NOT_INSTALLED
+     */
+    public CheckResult checkWait(String url){
+        try{
+            return this.longPollRestTemplate.execute(URI.create(url), HttpMethod.GET, null, this.checkExtractor);
+        }catch(ResourceAccessException e){
+            return classify(e);
+        }
+    }
+
+    /**
+     * 调用evict端点，请求对方立即将当前服务实例从ribbon中移除
+     * @param url
+     * @return 对方是否已移除，对方不支持时返回null
+     */
+    public Boolean evict(String url){
+        return this.restTemplate.execute(URI.create(url), HttpMethod.POST, null, this.commandExtractor);
+    }
+
+    /**
+     * 调用refresh端点，请求对方立即刷新eureka注册表和ribbon列表
+     * @param url
+     * @return 对方是否已安排刷新，对方不支持时返回null
+     */
+    public Boolean refresh(String url){
+        return this.restTemplate.execute(URI.create(url), HttpMethod.POST, null, this.commandExtractor);
+    }
+
+    /**
+     * 调用check/client端点，判断对方是否有当前服务的ribbon客户端
+     * @param url
+     * @return 对方不支持或无法连接时返回null
+     */
+    public Boolean checkClient(String url){
+        try{
+            return this.restTemplate.execute(URI.create(url), HttpMethod.GET, null, this.commandExtractor);
+        }catch(ResourceAccessException e){
+            return null;
+        }
+    }
+
+    /**
+     * 调用check/batch端点，一次检查多个实例
+     * @param url
+     * @param params 表单参数，serverName和instanceId成对出现，只有一个serverName时对所有instanceId生效
+     * @return 所有实例都已移除时返回ABSENT，对方不支持批量检查时返回NOT_INSTALLED
+     */
+    public CheckResult checkBatch(String url, String params){
+        try{
+            return this.restTemplate.execute(URI.create(url), HttpMethod.POST, formCallback(params), this.batchCheckExtractor);
+        }catch(ResourceAccessException e){
+            return classify(e);
+        }
+    }
+
+    /**
+     * 调用check/aggregate端点，由对方检查自身和同服务的其他实例
+     * 对方需要等待其他实例的结果，使用长轮询的读超时时间
+     * @param url
+     * @return
+     */
+    public AggregateCheckResult checkAggregate(String url){
+        try{
+            return this.longPollRestTemplate.execute(URI.create(url), HttpMethod.GET, null, this.aggregateExtractor);
+        }catch(ResourceAccessException e){
+            return AggregateCheckResult.failed(classify(e));
+        }
+    }
+
+    /**
+     * 调用unregister端点，使对方从注册中心下线
+     * @param url
+     * @return 对方不支持时返回null
+     */
+    public Boolean unregister(String url){
+        return this.restTemplate.execute(URI.create(url), HttpMethod.GET, null, this.commandExtractor);
+    }
+
+    /**
+     * 调用exit端点，使对方等待正在处理的请求完成后关闭
+     * @param url
+     * @return 对方不支持时返回null
+     */
+    public Boolean exit(String url){
+        return this.restTemplate.execute(URI.create(url), HttpMethod.POST, null, this.commandExtractor);
+    }
+
+    private static RequestCallback formCallback(final String params){
+        return new RequestCallback() {
+            @Override
+            public void doWithRequest(ClientHttpRequest request) throws IOException {
+                request.getHeaders().setContentType(MediaType.APPLICATION_FORM_URLENCODED);
+                request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+                StreamUtils.copy(params, StandardCharsets.UTF_8, request.getBody());
+            }
+        };
+    }
+
+    /**
+     * 连接阶段的失败视为无法连接，读超时等其他IO异常说明对方可能仍在工作，视为仍在使用
+     * @param e
+     * @return
+     */
+    static CheckResult classify(ResourceAccessException e){
+        Throwable cause = e.getCause();
+        if(cause instanceof ConnectException
+                || cause instanceof ConnectTimeoutException
+                || cause instanceof NoRouteToHostException
+                || cause instanceof UnknownHostException){
+            return CheckResult.UNREACHABLE;
+        }
+        return CheckResult.IN_USE;
+    }
+
+    private static CheckResult parse(Object value){
+        try{
+            return CheckResult.valueOf(String.valueOf(value));
+        }catch(IllegalArgumentException e){
+            return CheckResult.IN_USE;
+        }
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.httpClient.close();
+    }
+
+    /**
+     * 对方没有返回Keep-Alive头时使用配置的保持时间，而不是无限期保持
+     */
+    private static class DefaultKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+
+        private final long keepAlive;
+
+        DefaultKeepAliveStrategy(long keepAlive){
+            this.keepAlive = keepAlive;
+        }
+
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : this.keepAlive;
+        }
+    }
+
+    private static class NoErrorResponseErrorHandler extends DefaultResponseErrorHandler {
+
+        @Override
+        public boolean hasError(ClientHttpResponse response) {
+            return false;
+        }
+    }
+
+    /**
+     * 把创建的请求关联到当前线程绑定的RequestHandle
+     */
+    private static class AbortableRequestFactory extends HttpComponentsClientHttpRequestFactory {
+
+        AbortableRequestFactory(CloseableHttpClient httpClient){
+            super(httpClient);
+        }
+
+        @Override
+        protected void postProcessHttpRequest(HttpUriRequest request) {
+            RequestHandle handle = HANDLE.get();
+            if(handle != null){
+                handle.attach(request);
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package com.hunger.gracefuloffline.client;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * 用于从其他线程中止正在执行的请求，阻塞在socket读写上的请求无法通过中断线程取消
+ * 通过RemoteCheckClient.bind绑定到当前线程后，该线程发出的请求都会关联到这里
+ */
+public class RequestHandle {
+
+    private volatile HttpUriRequest request;
+
+    private volatile boolean aborted;
+
+    void attach(HttpUriRequest request){
+        this.request = request;
+        if(this.aborted){
+            request.abort();
+        }
+    }
+
+    /**
+     * 中止当前请求，之后发出的请求也会立即中止
+     */
+    public void abort(){
+        this.aborted = true;
+        HttpUriRequest request = this.request;
+        if(request != null){
+            request.abort();
+        }
+    }
+
+    public boolean isAborted() {
+        return aborted;
+    }
+}
@@ -0,0 +1,161 @@
+package com.hunger.gracefuloffline.drain;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 关闭应用前并行等待所有参与者完成，总耗时为最慢的参与者，而不是所有参与者之和
+ * 参与者在等待时才从context中查找：所有DrainParticipant bean，
+ * 开启drain-executors时还包括context中的ThreadPoolTaskExecutor、ThreadPoolTaskScheduler和ThreadPoolExecutor
+ */
+public class DrainCoordinator implements ApplicationContextAware {
+
+    private static final Logger logger = LoggerFactory.getLogger(DrainCoordinator.class);
+
+    private ApplicationContext applicationContext;
+
+    private final long defaultTimeout;
+
+    private final boolean drainExecutors;
+
+    public DrainCoordinator(long defaultTimeout, boolean drainExecutors){
+        this.defaultTimeout = defaultTimeout;
+        this.drainExecutors = drainExecutors;
+    }
+
+    /**
+     * 并行等待所有参与者，每个参与者使用自己的超时时间
+     * @return 是否全部在超时前完成
+     */
+    public boolean drain(){
+        List<DrainParticipant> participants = this.participants();
+        if(participants.isEmpty()){
+            return true;
+        }
+        long start = System.currentTimeMillis();
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("GracefulOfflineDrain-");
+        threadFactory.setDaemon(true);
+        ExecutorService executor = Executors.newFixedThreadPool(participants.size(), threadFactory);
+        Map<DrainParticipant, Future<Boolean>> futures = new LinkedHashMap<>();
+        try{
+            for(final DrainParticipant participant : participants){
+                final long timeout = this.timeoutOf(participant);
+                futures.put(participant, executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return participant.drain(timeout);
+                    }
+                }));
+            }
+            boolean drained = true;
+            for(Map.Entry<DrainParticipant, Future<Boolean>> entry : futures.entrySet()){
+                DrainParticipant participant = entry.getKey();
+                long left = start + this.timeoutOf(participant) - System.currentTimeMillis();
+                if(!this.await(participant, entry.getValue(), left)){
+                    drained = false;
+                }
+            }
+            logger.info("drained {} participants in {} ms, all completed: {}", participants.size(), System.currentTimeMillis() - start, drained);
+            return drained;
+        }finally{
+            executor.shutdownNow();
+        }
+    }
+
+    private boolean await(DrainParticipant participant, Future<Boolean> future, long leftMillis){
+        try{
+            //参与者自己控制超时，这里多等一个轮询间隔
+            return Boolean.TRUE.equals(future.get(Math.max(0, leftMillis) + 100, TimeUnit.MILLISECONDS));
+        }catch(TimeoutException e){
+            logger.warn("{} did not finish draining in time", participant.getName());
+            future.cancel(true);
+            return false;
+        }catch(ExecutionException e){
+            logger.error("{} drain error", participant.getName(), e.getCause());
+            return false;
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private long timeoutOf(DrainParticipant participant){
+        return participant.getDrainTimeout() > 0 ? participant.getDrainTimeout() : this.defaultTimeout;
+    }
+
+    /**
+     * 查找所有参与者，同一个线程池只等待一次
+     * @return
+     */
+    public List<DrainParticipant> participants(){
+        if(this.applicationContext == null){
+            return Collections.emptyList();
+        }
+        List<DrainParticipant> participants = new ArrayList<>();
+        try{
+            participants.addAll(this.applicationContext.getBeansOfType(DrainParticipant.class, false, false).values());
+            if(this.drainExecutors){
+                Set<ThreadPoolExecutor> seen = Collections.newSetFromMap(new IdentityHashMap<ThreadPoolExecutor, Boolean>());
+                this.addExecutors(participants, seen, this.applicationContext.getBeansOfType(ThreadPoolTaskExecutor.class, false, false));
+                this.addExecutors(participants, seen, this.applicationContext.getBeansOfType(ThreadPoolTaskScheduler.class, false, false));
+                this.addExecutors(participants, seen, this.applicationContext.getBeansOfType(ThreadPoolExecutor.class, false, false));
+            }
+        }catch(BeansException | IllegalStateException e){
+            //context已关闭
+            logger.warn("find drain participants error: {}", e.getMessage());
+        }
+        return participants;
+    }
+
+    private void addExecutors(List<DrainParticipant> participants, Set<ThreadPoolExecutor> seen, Map<String, ?> beans){
+        for(Map.Entry<String, ?> entry : beans.entrySet()){
+            ThreadPoolExecutor executor;
+            try{
+                executor = threadPoolOf(entry.getValue());
+            }catch(IllegalStateException e){
+                //尚未初始化的线程池
+                continue;
+            }
+            if(seen.add(executor)){
+                participants.add(new ExecutorDrainParticipant(entry.getKey(), executor, 0));
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor threadPoolOf(Object bean){
+        if(bean instanceof ThreadPoolTaskExecutor){
+            return ((ThreadPoolTaskExecutor)bean).getThreadPoolExecutor();
+        }
+        if(bean instanceof ThreadPoolTaskScheduler){
+            return ((ThreadPoolTaskScheduler)bean).getScheduledThreadPoolExecutor();
+        }
+        return (ThreadPoolExecutor)bean;
+    }
+
+    @Override
+    public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
+        this.applicationContext = applicationContext;
+    }
+}
@@ -0,0 +1,27 @@
+package com.hunger.gracefuloffline.drain;
+
+/**
+ * 关闭应用前需要等待完成的工作，如正在处理的请求、线程池中的任务、消息监听
+ * 实现为bean即可被发现，所有参与者在检查其他服务实例完成后并行等待
+ */
+public interface DrainParticipant {
+
+    /**
+     * 用于日志的名称
+     * @return
+     */
+    String getName();
+
+    /**
+     * 单独的最长等待时间，单位毫秒，不大于0时使用drain-timeout
+     * @return
+     */
+    long getDrainTimeout();
+
+    /**
+     * 等待工作完成，不应超过timeoutMillis
+     * @param timeoutMillis
+     * @return 是否在超时前全部完成
+     */
+    boolean drain(long timeoutMillis);
+}
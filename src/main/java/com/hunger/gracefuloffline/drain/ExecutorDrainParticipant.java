@@ -0,0 +1,31 @@
+package com.hunger.gracefuloffline.drain;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+
+/**
+ * 等待线程池中正在执行和排队的任务完成
+ * 只观察不关闭线程池，等待期间仍在处理的请求可以继续提交任务；
+ * 定时线程池的队列中是尚未到期的任务，只等待正在执行的任务
+ */
+public class ExecutorDrainParticipant extends IdleDrainParticipant {
+
+    private final ThreadPoolExecutor executor;
+
+    public ExecutorDrainParticipant(String name, ThreadPoolExecutor executor, long drainTimeout){
+        super(name, drainTimeout);
+        this.executor = executor;
+    }
+
+    @Override
+    protected long pending() {
+        if(this.executor.isTerminated()){
+            return 0;
+        }
+        long active = this.executor.getActiveCount();
+        if(this.executor instanceof ScheduledThreadPoolExecutor){
+            return active;
+        }
+        return active + this.executor.getQueue().size();
+    }
+}
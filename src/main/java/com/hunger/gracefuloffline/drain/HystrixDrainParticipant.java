@@ -0,0 +1,22 @@
+package com.hunger.gracefuloffline.drain;
+
+import com.netflix.hystrix.HystrixThreadPoolMetrics;
+
+/**
+ * 等待所有hystrix线程池中正在执行和排队的命令完成
+ */
+public class HystrixDrainParticipant extends IdleDrainParticipant {
+
+    public HystrixDrainParticipant(long drainTimeout){
+        super("hystrix", drainTimeout);
+    }
+
+    @Override
+    protected long pending() {
+        long pending = 0;
+        for(HystrixThreadPoolMetrics metrics : HystrixThreadPoolMetrics.getInstances()){
+            pending += metrics.getCurrentActiveCount().longValue() + metrics.getCurrentQueueSize().longValue();
+        }
+        return pending;
+    }
+}
@@ -0,0 +1,57 @@
+package com.hunger.gracefuloffline.drain;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 轮询未完成的工作数，直到为0或超时
+ */
+public abstract class IdleDrainParticipant implements DrainParticipant {
+
+    private static final Logger logger = LoggerFactory.getLogger(IdleDrainParticipant.class);
+
+    private static final long AWAIT_INTERVAL_MILLIS = 50;
+
+    private final String name;
+
+    private final long drainTimeout;
+
+    protected IdleDrainParticipant(String name, long drainTimeout){
+        this.name = name;
+        this.drainTimeout = drainTimeout;
+    }
+
+    /**
+     * 正在执行和排队中的工作数
+     * @return
+     */
+    protected abstract long pending();
+
+    @Override
+    public boolean drain(long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(this.pending() > 0){
+            if(System.currentTimeMillis() >= deadline){
+                logger.warn("after {} ms, {} still has {} tasks pending", timeoutMillis, this.name, this.pending());
+                return false;
+            }
+            try{
+                Thread.sleep(AWAIT_INTERVAL_MILLIS);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                return this.pending() <= 0;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public long getDrainTimeout() {
+        return drainTimeout;
+    }
+}
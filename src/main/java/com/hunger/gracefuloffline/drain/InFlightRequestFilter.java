@@ -0,0 +1,89 @@
+package com.hunger.gracefuloffline.drain;
+
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * 统计正在处理的请求，异步请求在异步处理结束时才计为完成
+ * gracefuloffline自身的端点不计入，避免长轮询等请求阻塞下线
+ */
+public class InFlightRequestFilter extends OncePerRequestFilter {
+
+    private final InFlightRequestTracker tracker;
+
+    /**
+     * gracefuloffline端点在应用context-path下的路径：management.context-path + 端点path
+     * 端点不在当前服务器上(单独的管理端口或端点未开启)时为null
+     */
+    private final String endpointPath;
+
+    /**
+     * 无状态，所有异步请求共用
+     */
+    private final AsyncListener asyncCompleteListener;
+
+    public InFlightRequestFilter(final InFlightRequestTracker tracker, String endpointPath){
+        this.tracker = tracker;
+        this.endpointPath = endpointPath;
+        this.asyncCompleteListener = new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+                tracker.decrement();
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+                //再次startAsync时需要重新注册
+                event.getAsyncContext().addListener(this);
+            }
+        };
+    }
+
+    /**
+     * 按context-path + 端点路径做前缀匹配，不产生对象分配
+     */
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if(this.endpointPath == null){
+            return false;
+        }
+        String uri = request.getRequestURI();
+        String contextPath = request.getContextPath();
+        int end = contextPath.length() + this.endpointPath.length();
+        return uri.startsWith(contextPath)
+                && uri.startsWith(this.endpointPath, contextPath.length())
+                && (uri.length() == end || uri.charAt(end) == '/');
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain filterChain) throws ServletException, IOException {
+        this.tracker.increment();
+        boolean async = false;
+        try{
+            filterChain.doFilter(request, response);
+            async = this.isAsyncStarted(request);
+            if(async){
+                request.getAsyncContext().addListener(this.asyncCompleteListener);
+            }
+        }finally{
+            if(!async){
+                this.tracker.decrement();
+            }
+        }
+    }
+}
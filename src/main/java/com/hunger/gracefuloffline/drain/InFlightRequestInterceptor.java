@@ -0,0 +1,33 @@
+package com.hunger.gracefuloffline.drain;
+
+import org.springframework.web.servlet.handler.HandlerInterceptorAdapter;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * 按处理方法统计正在处理的请求
+ * 异步请求在首次分发时计数，在异步分发结束时完成
+ */
+public class InFlightRequestInterceptor extends HandlerInterceptorAdapter {
+
+    private final InFlightRequestTracker tracker;
+
+    public InFlightRequestInterceptor(InFlightRequestTracker tracker){
+        this.tracker = tracker;
+    }
+
+    @Override
+    public boolean preHandle(HttpServletRequest request, HttpServletResponse response, Object handler) {
+        if(request.getDispatcherType() != DispatcherType.ASYNC){
+            this.tracker.endpointCounter(handler).increment();
+        }
+        return true;
+    }
+
+    @Override
+    public void afterCompletion(HttpServletRequest request, HttpServletResponse response, Object handler, Exception ex) {
+        this.tracker.endpointCounter(handler).decrement();
+    }
+}
@@ -0,0 +1,134 @@
+package com.hunger.gracefuloffline.drain;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.method.HandlerMethod;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 统计正在处理的请求数
+ * 使用LongAdder分段计数，请求之间几乎没有竞争，正常请求处理中不加锁、不分配对象
+ * 作为DrainParticipant在关闭应用前等待请求完成
+ */
+public class InFlightRequestTracker implements DrainParticipant {
+
+    private static final Logger logger = LoggerFactory.getLogger(InFlightRequestTracker.class);
+
+    private static final long AWAIT_INTERVAL_MILLIS = 50;
+
+    /**
+     * 所有经过filter的请求
+     */
+    private final LongAdder total = new LongAdder();
+
+    /**
+     * 按处理方法分别计数，用于在等待超时时定位未完成的接口
+     */
+    private final ConcurrentHashMap<Object, EndpointCounter> endpoints = new ConcurrentHashMap<>();
+
+    public void increment(){
+        this.total.increment();
+    }
+
+    public void decrement(){
+        this.total.decrement();
+    }
+
+    public long inFlight(){
+        return this.total.sum();
+    }
+
+    /**
+     * 处理方法对应的计数器，首次出现时创建
+     * @param handler
+     * @return
+     */
+    public LongAdder endpointCounter(Object handler){
+        Object key = handler instanceof HandlerMethod ? ((HandlerMethod)handler).getMethod() : handler;
+        EndpointCounter counter = this.endpoints.get(key);
+        if(counter == null){
+            counter = new EndpointCounter(nameOf(key));
+            EndpointCounter existing = this.endpoints.putIfAbsent(key, counter);
+            if(existing != null){
+                counter = existing;
+            }
+        }
+        return counter.count;
+    }
+
+    /**
+     * 仍有请求在处理的接口
+     * @return
+     */
+    public Map<String, Long> inFlightByEndpoint(){
+        Map<String, Long> result = new LinkedHashMap<>();
+        for(EndpointCounter counter : this.endpoints.values()){
+            long count = counter.count.sum();
+            if(count > 0){
+                result.put(counter.name, count);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 等待正在处理的请求全部完成
+     * @param timeoutMillis
+     * @return 是否在超时前全部完成
+     */
+    public boolean awaitIdle(long timeoutMillis){
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while(this.inFlight() > 0){
+            if(System.currentTimeMillis() >= deadline){
+                logger.warn("after {} ms, there are still {} requests in flight: {}", timeoutMillis, this.inFlight(), this.inFlightByEndpoint());
+                return false;
+            }
+            try{
+                Thread.sleep(AWAIT_INTERVAL_MILLIS);
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                return this.inFlight() <= 0;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String getName() {
+        return "in-flight requests";
+    }
+
+    @Override
+    public long getDrainTimeout() {
+        return 0;
+    }
+
+    @Override
+    public boolean drain(long timeoutMillis) {
+        return this.awaitIdle(timeoutMillis);
+    }
+
+    private static String nameOf(Object key){
+        if(key instanceof Method){
+            Method method = (Method)key;
+            return method.getDeclaringClass().getSimpleName() + "#" + method.getName();
+        }
+        return String.valueOf(key);
+    }
+
+    private static class EndpointCounter {
+
+        final String name;
+
+        final LongAdder count = new LongAdder();
+
+        EndpointCounter(String name){
+            this.name = name;
+        }
+    }
+}
@@ -1,30 +1,72 @@
 package com.hunger.gracefuloffline.endpoint;
 
 
+import com.hunger.gracefuloffline.handler.AggregateCheckHandler;
 import com.hunger.gracefuloffline.handler.CheckInstanceInRibbonHandler;
 import com.hunger.gracefuloffline.handler.GracefulOffineHandler;
+import com.hunger.gracefuloffline.handler.RegistryRefreshHandler;
+import com.hunger.gracefuloffline.handler.ShutdownStatus;
+import com.hunger.gracefuloffline.handler.ShutdownStatusListener;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import java.io.IOException;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @ConfigurationProperties(prefix = "endpoints.graceful.offline")
-public class GracefulOfflineEndpoint extends AbstractEndpoint<Map<String, Object>> {
+public class GracefulOfflineEndpoint extends AbstractEndpoint<Map<String, Object>> implements DisposableBean {
     
     private static final Logger logger = LoggerFactory.getLogger(GracefulOfflineEndpoint.class);
     
     public static final String ID = "gracefuloffline";
+
+    /**
+     * 每个SSE连接最多积压的进度快照，超过时关闭该连接，客户端重连后从当前进度开始
+     */
+    private static final int STATUS_QUEUE_SIZE = 32;
     
     private CheckInstanceInRibbonHandler checkInstanceInRibbonHandler;
     
     private GracefulOffineHandler gracefulOffineHandler;
+
+    /**
+     * 聚合检查，没有eureka客户端时为null
+     */
+    private AggregateCheckHandler aggregateCheckHandler;
+
+    /**
+     * 注册表刷新，没有eureka客户端时为null
+     */
+    private RegistryRefreshHandler registryRefreshHandler;
+
+    /**
+     * 发送SSE进度的单线程，检查和定时线程只把快照放入各连接的队列，不等待网络写入
+     */
+    private final ExecutorService statusSender;
     
-    public GracefulOfflineEndpoint(CheckInstanceInRibbonHandler checkInstanceInRibbonHandler, GracefulOffineHandler gracefulOffineHandler){
+    public GracefulOfflineEndpoint(CheckInstanceInRibbonHandler checkInstanceInRibbonHandler, GracefulOffineHandler gracefulOffineHandler, AggregateCheckHandler aggregateCheckHandler,
+                                   RegistryRefreshHandler registryRefreshHandler){
         super(ID);
         this.checkInstanceInRibbonHandler = checkInstanceInRibbonHandler;
         this.gracefulOffineHandler = gracefulOffineHandler;
+        this.aggregateCheckHandler = aggregateCheckHandler;
+        this.registryRefreshHandler = registryRefreshHandler;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("GracefulOfflineStatusSender-");
+        threadFactory.setDaemon(true);
+        this.statusSender = Executors.newSingleThreadExecutor(threadFactory);
     }
     
     public Map<String, Object> invoke() {
@@ -41,7 +83,225 @@ public class GracefulOfflineEndpoint extends AbstractEndpoint<Map<String, Object
         return checkInstanceInRibbonHandler.check(serverName, instanceId);
     }
     
+    /**
+     * 判断本服务是否有指定服务的ribbon客户端
+     * @param serverName
+     * @return
+     */
+    public Boolean checkClient(String serverName){
+        return checkInstanceInRibbonHandler.hasClient(serverName);
+    }
+
+    /**
+     * 批量判断服务实例是否在本服务ribbon列表中
+     * @param serverNames
+     * @param instanceIds
+     * @return
+     */
+    public List<Boolean> checkInstances(List<String> serverNames, List<String> instanceIds){
+        return checkInstanceInRibbonHandler.checkBatch(serverNames, instanceIds);
+    }
+
+    /**
+     * 检查服务实例是否在本服务所有实例的ribbon列表中
+     * @param serverName
+     * @param instanceId
+     * @param evict
+     * @param timeout 检查每个实例的超时时间，单位毫秒，不大于0时使用check-timeout
+     * @return 不支持聚合检查时返回null
+     */
+    public Map<String, Object> checkInstanceAggregate(String serverName, String instanceId, boolean evict, long timeout){
+        if(aggregateCheckHandler == null){
+            return null;
+        }
+        return aggregateCheckHandler.check(serverName, instanceId, evict, timeout);
+    }
+
+    /**
+     * 将服务实例立即从本服务ribbon列表中移除
+     * @param serverName
+     * @param instanceId
+     * @return
+     */
+    public Boolean evictInstance(String serverName, String instanceId){
+        return checkInstanceInRibbonHandler.evict(serverName, instanceId);
+    }
+
+    /**
+     * 立即刷新eureka注册表和指定服务的ribbon列表，短时间内的多次请求合并为一次
+     * @param serverName
+     * @return 已安排刷新，不支持时返回null
+     */
+    public Boolean refreshInstances(String serverName){
+        if(registryRefreshHandler == null){
+            return null;
+        }
+        long delay = registryRefreshHandler.request(serverName);
+        logger.debug("refresh {} in {} ms", serverName, delay);
+        return true;
+    }
+
+    /**
+     * 等待服务实例从本服务ribbon列表中移除
+     * @param serverName
+     * @param instanceId
+     * @param timeout
+     * @return
+     */
+    public DeferredResult<Boolean> waitInstanceRemoved(String serverName, String instanceId, long timeout){
+        return checkInstanceInRibbonHandler.waitRemoved(serverName, instanceId, timeout);
+    }
+    
     public Boolean unregister(){
         return gracefulOffineHandler.unregister();
     }
+
+    /**
+     * 协同下线当前服务的多个实例，由当前实例统一检查
+     * @param instanceIds
+     * @return
+     */
+    public Map<String, Object> shutdownGroup(List<String> instanceIds){
+        return gracefulOffineHandler.shutdownGroup(instanceIds);
+    }
+
+    /**
+     * 协同下线时由协调者调用，等待正在处理的请求完成后关闭
+     * @return
+     */
+    public Boolean exit(){
+        return gracefulOffineHandler.exit();
+    }
+
+    /**
+     * 当前服务下线进度
+     * @return
+     */
+    public Map<String, Object> status(){
+        return gracefulOffineHandler.status();
+    }
+
+    /**
+     * 以server-sent events推送下线进度，连接建立时先推送当前进度，之后每次变化推送一次，
+     * 关闭应用或等待超时后结束
+     * @param timeout 连接最长保持时间，单位毫秒
+     * @return
+     */
+    public SseEmitter statusStream(long timeout){
+        final SseEmitter emitter = new SseEmitter(timeout);
+        final StatusEmitter listener = new StatusEmitter(emitter);
+        Runnable remove = new Runnable() {
+            @Override
+            public void run() {
+                gracefulOffineHandler.removeStatusListener(listener);
+            }
+        };
+        emitter.onCompletion(remove);
+        emitter.onTimeout(remove);
+        gracefulOffineHandler.addStatusListener(listener);
+        listener.onStatus(gracefulOffineHandler.currentStatus());
+        return emitter;
+    }
+
+    /**
+     * 把进度快照写到一个SSE连接，按序号去重，旧快照不再推送；
+     * 回调只放入队列，由statusSender发送，队列满时不再推送并关闭连接
+     */
+    private class StatusEmitter implements ShutdownStatusListener, Runnable {
+
+        private final SseEmitter emitter;
+
+        private final BlockingQueue<ShutdownStatus> pending = new ArrayBlockingQueue<>(STATUS_QUEUE_SIZE);
+
+        /**
+         * 是否已提交发送任务，同一连接同时只有一个发送任务
+         */
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        private long lastSequence = -1;
+
+        /**
+         * 发送跟不上，剩余快照不再发送，由发送线程关闭连接
+         */
+        private volatile boolean overflow;
+
+        private volatile boolean closed;
+
+        StatusEmitter(SseEmitter emitter){
+            this.emitter = emitter;
+        }
+
+        @Override
+        public void onStatus(ShutdownStatus status) {
+            synchronized(this){
+                if(this.closed || this.overflow || status.getSequence() <= this.lastSequence){
+                    return;
+                }
+                this.lastSequence = status.getSequence();
+                if(!this.pending.offer(status)){
+                    logger.debug("shutdown status stream is too slow, close it");
+                    this.overflow = true;
+                    gracefulOffineHandler.removeStatusListener(this);
+                }
+            }
+            this.schedule();
+        }
+
+        private void schedule(){
+            if(!this.scheduled.compareAndSet(false, true)){
+                return;
+            }
+            try{
+                statusSender.execute(this);
+            }catch(RejectedExecutionException e){
+                //应用正在关闭
+                this.closed = true;
+                gracefulOffineHandler.removeStatusListener(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try{
+                ShutdownStatus status;
+                while(!this.closed && !this.overflow && (status = this.pending.poll()) != null){
+                    this.send(status);
+                }
+                if(this.overflow && !this.closed){
+                    this.closed = true;
+                    this.pending.clear();
+                    this.emitter.complete();
+                }
+            }finally{
+                this.scheduled.set(false);
+            }
+            //释放标记前放入的快照
+            if(!this.closed && !this.pending.isEmpty()){
+                this.schedule();
+            }
+        }
+
+        private void send(ShutdownStatus status){
+            try{
+                this.emitter.send(SseEmitter.event()
+                        .id(String.valueOf(status.getSequence()))
+                        .name(status.getEvent() == null ? "status" : status.getEvent())
+                        .data(status.toMap()));
+                if(status.isTerminal()){
+                    this.closed = true;
+                    this.emitter.complete();
+                }
+            }catch(IOException | IllegalStateException e){
+                logger.debug("send shutdown status error: {}", e.getMessage());
+                this.closed = true;
+                gracefulOffineHandler.removeStatusListener(this);
+            }
+        }
+    }
+
+    @Override
+    public void destroy() {
+        //已放入的进度(包括closing)继续发送完
+        this.statusSender.shutdown();
+    }
 }
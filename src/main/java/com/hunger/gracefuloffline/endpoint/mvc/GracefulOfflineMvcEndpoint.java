@@ -4,13 +4,22 @@ import com.hunger.gracefuloffline.endpoint.GracefulOfflineEndpoint;
 import org.springframework.boot.actuate.endpoint.mvc.EndpointMvcAdapter;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseBody;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 
 @ConfigurationProperties(prefix = "endpoints.graceful.offline")
 public class GracefulOfflineMvcEndpoint extends EndpointMvcAdapter {
@@ -28,12 +37,97 @@ public class GracefulOfflineMvcEndpoint extends EndpointMvcAdapter {
         return this.delegate.checkInstance(serverName, instanceId);
     }
 
+    /**
+     * 精简响应：直接写出单个字节1/0，不经过消息转换器
+     */
+    @GetMapping(value = "/check", params = "lean=true")
+    public void checkInstanceLean(@RequestParam("serverName") String serverName, @RequestParam("instanceId") String instanceId,
+                                  HttpServletResponse response) throws IOException {
+        boolean notExist = this.delegate.checkInstance(serverName, instanceId);
+        response.setContentType(MediaType.TEXT_PLAIN_VALUE);
+        response.setContentLength(1);
+        response.getOutputStream().write(notExist ? '1' : '0');
+    }
+
+    @GetMapping(value = "/check/client")
+    @ResponseBody
+    public Boolean checkClient(@RequestParam("serverName") String serverName){
+        return this.delegate.checkClient(serverName);
+    }
+
+    @RequestMapping(value = "/check/batch", method = {RequestMethod.GET, RequestMethod.POST})
+    @ResponseBody
+    public Object checkInstances(@RequestParam("serverName") List<String> serverNames, @RequestParam("instanceId") List<String> instanceIds){
+        if(serverNames.size() != 1 && serverNames.size() != instanceIds.size()){
+            return new ResponseEntity(Collections.singletonMap("message", "serverName count must be 1 or equal to instanceId count"), HttpStatus.BAD_REQUEST);
+        }
+        return this.delegate.checkInstances(serverNames, instanceIds);
+    }
+
+    @GetMapping(value = "/check/aggregate")
+    @ResponseBody
+    public Object checkInstanceAggregate(@RequestParam("serverName") String serverName, @RequestParam("instanceId") String instanceId,
+                                         @RequestParam(value = "evict", defaultValue = "false") boolean evict,
+                                         @RequestParam(value = "timeout", defaultValue = "0") long timeout){
+        Map<String, Object> result = this.delegate.checkInstanceAggregate(serverName, instanceId, evict, timeout);
+        if(result == null){
+            return new ResponseEntity(Collections.singletonMap("message", "Aggregate check is not supported"), HttpStatus.NOT_FOUND);
+        }
+        return result;
+    }
+
+    @GetMapping(value = "/check/wait")
+    @ResponseBody
+    public DeferredResult<Boolean> waitInstanceRemoved(@RequestParam("serverName") String serverName, @RequestParam("instanceId") String instanceId,
+                                                       @RequestParam(value = "timeout", defaultValue = "10000") long timeout){
+        return this.delegate.waitInstanceRemoved(serverName, instanceId, timeout);
+    }
+
+    @PostMapping(value = "/evict")
+    @ResponseBody
+    public Boolean evictInstance(@RequestParam("serverName") String serverName, @RequestParam("instanceId") String instanceId){
+        return this.delegate.evictInstance(serverName, instanceId);
+    }
+
+    @PostMapping(value = "/refresh")
+    @ResponseBody
+    public Object refreshInstances(@RequestParam("serverName") String serverName){
+        Boolean scheduled = this.delegate.refreshInstances(serverName);
+        if(scheduled == null){
+            return new ResponseEntity(Collections.singletonMap("message", "Registry refresh is not supported"), HttpStatus.NOT_FOUND);
+        }
+        return scheduled;
+    }
+
     @GetMapping(value = "/unregister")
     @ResponseBody
     public Boolean unregister(){
         return this.delegate.unregister();
     }
     
+    @PostMapping(value = "/group")
+    @ResponseBody
+    public Map<String, Object> shutdownGroup(@RequestParam("instanceId") List<String> instanceIds){
+        return this.delegate.shutdownGroup(instanceIds);
+    }
+
+    @PostMapping(value = "/exit")
+    @ResponseBody
+    public Boolean exit(){
+        return this.delegate.exit();
+    }
+
+    @GetMapping(value = "/status")
+    @ResponseBody
+    public Map<String, Object> status(){
+        return this.delegate.status();
+    }
+
+    @GetMapping(value = "/status/stream", produces = "text/event-stream")
+    public SseEmitter statusStream(@RequestParam(value = "timeout", defaultValue = "600000") long timeout){
+        return this.delegate.statusStream(timeout);
+    }
+
     @GetMapping(
             produces = {"application/vnd.spring-boot.actuator.v1+json", "application/json"}
     )
@@ -0,0 +1,104 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.client.CheckResult;
+import com.hunger.gracefuloffline.client.RemoteCheckClient;
+import com.hunger.gracefuloffline.properties.GracefulOfflineProperties;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.shared.Application;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * 聚合检查的委托方：检查自身ribbon，并发检查本服务其他UP实例，返回逐个实例的结果
+ * 下线方对每个消费者服务只需请求一个实例
+ */
+public class AggregateCheckHandler {
+
+    private static final Logger logger = LoggerFactory.getLogger(AggregateCheckHandler.class);
+
+    private EurekaClient discoveryClient;
+
+    private CheckInstanceInRibbonHandler checkInstanceInRibbonHandler;
+
+    private RemoteCheckClient remoteCheckClient;
+
+    private InstanceCheckExecutor checkExecutor;
+
+    private GracefulOfflineProperties properties;
+
+    public AggregateCheckHandler(EurekaClient discoveryClient, CheckInstanceInRibbonHandler checkInstanceInRibbonHandler, RemoteCheckClient remoteCheckClient,
+                                 InstanceCheckExecutor checkExecutor, GracefulOfflineProperties properties){
+        this.discoveryClient = discoveryClient;
+        this.checkInstanceInRibbonHandler = checkInstanceInRibbonHandler;
+        this.remoteCheckClient = remoteCheckClient;
+        this.checkExecutor = checkExecutor;
+        this.properties = properties;
+    }
+
+    /**
+     * @param serverName
+     * @param instanceId
+     * @param evict 是否先将实例从ribbon中移除再检查
+     * @param timeout 检查每个实例的超时时间，由下线方按自身的请求超时给出，不大于0或超过check-timeout时使用check-timeout
+     * @return notExist：所有实例都已移除；instances：instanceId -> CheckResult
+     */
+    public Map<String, Object> check(final String serverName, final String instanceId, final boolean evict, long timeout){
+        InstanceInfo self = this.discoveryClient.getApplicationInfoManager().getInfo();
+        Map<String, Callable<CheckResult>> calls = new LinkedHashMap<>();
+        calls.put(self.getInstanceId(), new Callable<CheckResult>() {
+            @Override
+            public CheckResult call() {
+                boolean notExist = evict ? checkInstanceInRibbonHandler.evict(serverName, instanceId) : checkInstanceInRibbonHandler.check(serverName, instanceId);
+                return notExist ? CheckResult.ABSENT : CheckResult.IN_USE;
+            }
+        });
+        Application app = this.discoveryClient.getApplication(self.getAppName());
+        if(app != null){
+            String lowerAppName = self.getAppName().toLowerCase();
+            String params = "?serverName=" + serverName + "&instanceId=" + instanceId;
+            String checkParams = this.properties.getLeanCheck() ? params + PeerTarget.LEAN_PARAM : params;
+            for(InstanceInfo sibling : app.getInstances()){
+                if(sibling.getInstanceId().equals(self.getInstanceId()) || sibling.getStatus() != InstanceInfo.InstanceStatus.UP){
+                    continue;
+                }
+                final String endpointUrl = GracefulOffineHandler.buildEndpointUrl(sibling, this.properties.getAppCustomPath(lowerAppName));
+                final String checkUrl = endpointUrl + "/check" + checkParams;
+                final String evictUrl = endpointUrl + "/evict" + params;
+                calls.put(sibling.getInstanceId(), new Callable<CheckResult>() {
+                    @Override
+                    public CheckResult call() {
+                        if(evict){
+                            try{
+                                remoteCheckClient.evict(evictUrl);
+                            }catch(Exception e){
+                                logger.debug("{} {}", evictUrl, e.getMessage());
+                            }
+                        }
+                        return remoteCheckClient.check(checkUrl);
+                    }
+                });
+            }
+        }
+        long callTimeout = this.properties.getCheckTimeout();
+        if(timeout > 0 && timeout < callTimeout){
+            callTimeout = timeout;
+        }
+        Map<String, CheckResult> results = this.checkExecutor.invokeAll(calls, CheckResult.IN_USE, callTimeout);
+        boolean notExist = true;
+        for(CheckResult result : results.values()){
+            if(result != CheckResult.ABSENT){
+                notExist = false;
+                break;
+            }
+        }
+        Map<String, Object> response = new LinkedHashMap<>();
+        response.put("notExist", notExist);
+        response.put("instances", results);
+        return response;
+    }
+}
@@ -1,28 +1,84 @@
 package com.hunger.gracefuloffline.handler;
 
+import com.hunger.gracefuloffline.metrics.GracefulOfflineMetrics;
+import com.hunger.gracefuloffline.ribbon.RibbonServerIndex;
 import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.shared.Application;
+import com.netflix.loadbalancer.BaseLoadBalancer;
 import com.netflix.loadbalancer.DynamicServerListLoadBalancer;
+import com.netflix.loadbalancer.ILoadBalancer;
 import com.netflix.loadbalancer.Server;
 import com.netflix.niws.loadbalancer.DiscoveryEnabledServer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
 import org.springframework.cloud.netflix.ribbon.SpringClientFactory;
 import org.springframework.context.annotation.AnnotationConfigApplicationContext;
 import org.springframework.util.ReflectionUtils;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 
 public class CheckInstanceInRibbonHandler {
 
     private static final Logger logger = LoggerFactory.getLogger(CheckInstanceInRibbonHandler.class);
-    
+
     private SpringClientFactory springClientFactory;
-    
-    public CheckInstanceInRibbonHandler(SpringClientFactory springClientFactory){
+
+    /**
+     * ribbon加载的context，SpringClientFactory中的final字段，只需反射一次
+     */
+    private Map<String, AnnotationConfigApplicationContext> contexts;
+
+    /**
+     * ribbon客户端名称 -> 服务实例索引
+     */
+    private final ConcurrentHashMap<String, RibbonServerIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * 长轮询最长等待时间，单位毫秒
+     */
+    private long maxWaitTimeout;
+
+    /**
+     * ribbon客户端名称 -> check结果缓存
+     */
+    private final ConcurrentHashMap<String, CheckResultCache> caches = new ConcurrentHashMap<>();
+
+    /**
+     * check结果缓存时间，单位毫秒，不大于0时不缓存
+     */
+    private long cacheTtl;
+
+    /**
+     * 每个ribbon客户端最多缓存的结果数
+     */
+    private int cacheSize;
+
+    private GracefulOfflineMetrics metrics;
+
+    /**
+     * 移除实例前核对本地注册表中的状态，可能为null
+     */
+    private EurekaClient discoveryClient;
+
+    public CheckInstanceInRibbonHandler(SpringClientFactory springClientFactory, long maxWaitTimeout, long cacheTtl, int cacheSize, GracefulOfflineMetrics metrics,
+                                        EurekaClient discoveryClient){
         this.springClientFactory = springClientFactory;
+        this.discoveryClient = discoveryClient;
+        this.maxWaitTimeout = maxWaitTimeout;
+        this.cacheTtl = cacheTtl;
+        this.cacheSize = cacheSize;
+        this.metrics = metrics;
+        this.contexts = this.ribbonContext();
     }
 
     /**
@@ -32,19 +88,42 @@ public class CheckInstanceInRibbonHandler {
      * @return
      */
     public boolean check(String serverName, String instanceId){
-        ConcurrentHashMap<String, AnnotationConfigApplicationContext> contextMap = this.ribbonContext();
-        if(contextMap == null){
-            logger.debug("cannot find ribbon context");
-            return true;
+        long start = System.nanoTime();
+        try{
+            RibbonServerIndex index = this.serverIndex(serverName);
+            if(index == null){
+                logger.debug("cannot find any {} server", serverName);
+                return true;
+            }
+            return this.check(serverName, index, instanceId);
+        }finally{
+            this.metrics.recordConsumerCheck(System.nanoTime() - start);
         }
-        
-        List<Server> serverList = this.findServerList(contextMap, serverName);
-        if(serverList.isEmpty()){
-            logger.debug("cannot find any {} server", serverName);
-            return true;
+    }
+
+    /**
+     * 开启缓存时同一实例的并发检查合并为一次，结果在缓存时间内复用；
+     * 命中缓存时不创建任何对象
+     */
+    private boolean check(final String serverName, final RibbonServerIndex index, final String instanceId){
+        if(this.cacheTtl <= 0){
+            return this.notExist(serverName, index, instanceId);
+        }
+        CheckResultCache cache = this.resultCache(serverName);
+        Boolean cached = cache.peek(instanceId, index);
+        if(cached != null){
+            return cached;
         }
-        
-        Server server = this.findServer(serverList, instanceId);
+        return cache.get(instanceId, index, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return notExist(serverName, index, instanceId);
+            }
+        });
+    }
+
+    private boolean notExist(String serverName, RibbonServerIndex index, String instanceId){
+        Server server = index.find(instanceId);
         if(server == null){
             logger.debug("cannot find {} {} instance", serverName, instanceId);
             return true;
@@ -54,52 +133,229 @@ public class CheckInstanceInRibbonHandler {
     }
 
     /**
-     * 获取ribbon加载的context
+     * 本服务是否有指定服务的ribbon客户端，没有时不是该服务的调用方
+     * @param serverName
      * @return
      */
-    private ConcurrentHashMap<String, AnnotationConfigApplicationContext> ribbonContext(){
-        Field field = ReflectionUtils.findField(springClientFactory.getClass(), "contexts");
-        field.setAccessible(true);
-        ConcurrentHashMap<String, AnnotationConfigApplicationContext> contexts = (ConcurrentHashMap)ReflectionUtils.getField(field, springClientFactory);
-        logger.debug("ribbon contexts == null: {}", contexts == null);
-        return contexts;
+    public boolean hasClient(String serverName){
+        return this.serverIndex(serverName) != null;
+    }
+
+    private CheckResultCache resultCache(String serverName){
+        CheckResultCache cache = this.caches.get(serverName);
+        if(cache == null){
+            cache = new CheckResultCache(this.cacheTtl, this.cacheSize);
+            CheckResultCache existing = this.caches.putIfAbsent(serverName, cache);
+            if(existing != null){
+                cache = existing;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * 批量检查多个服务实例是否不在ribbon的服务列表中，同一服务只获取一次索引
+     * @param serverNames 与instanceIds一一对应，只有一个时对所有instanceId生效
+     * @param instanceIds
+     * @return 按instanceIds顺序的检查结果
+     */
+    public List<Boolean> checkBatch(List<String> serverNames, List<String> instanceIds){
+        if(serverNames.size() != 1 && serverNames.size() != instanceIds.size()){
+            throw new IllegalArgumentException("serverName count must be 1 or equal to instanceId count");
+        }
+        long start = System.nanoTime();
+        List<Boolean> results = new ArrayList<>(instanceIds.size());
+        Map<String, RibbonServerIndex> indexes = new HashMap<>();
+        for(int i = 0; i < instanceIds.size(); i++){
+            String serverName = serverNames.size() == 1 ? serverNames.get(0) : serverNames.get(i);
+            RibbonServerIndex index;
+            if(indexes.containsKey(serverName)){
+                index = indexes.get(serverName);
+            }else{
+                index = this.serverIndex(serverName);
+                indexes.put(serverName, index);
+            }
+            results.add(index == null || this.check(serverName, index, instanceIds.get(i)));
+        }
+        this.metrics.recordConsumerBatchCheck(System.nanoTime() - start);
+        return results;
     }
-    
-    private List<Server> findServerList(ConcurrentHashMap<String, AnnotationConfigApplicationContext> contextMap, String serverName){
-        List<Server> serverList = new ArrayList<>();
-        AnnotationConfigApplicationContext annoContext = contextMap.get(serverName);
-        if(annoContext == null){
-            logger.debug("cannot find {} AnnotationConfigApplicationContext", serverName);
-            return serverList;
+
+    /**
+     * 将指定服务的指定实例立即从本服务ribbon中移除，不等待ribbon列表定时刷新
+     * 本地注册表中实例已下线或不存在时按注册表刷新服务列表；
+     * 注册表仍是UP时(缓存未刷新或请求不可信)只在该ribbon客户端中标记为不可用，不修改共享的注册表实例，
+     * 之后的ping或服务列表刷新仍以注册表为准
+     * @param serverName
+     * @param instanceId
+     * @return 实例是否已不在ribbon的可用服务中
+     */
+    public boolean evict(String serverName, String instanceId){
+        RibbonServerIndex index = this.serverIndex(serverName);
+        if(index == null){
+            logger.debug("cannot find any {} server", serverName);
+            return true;
         }
+        Server server = index.find(instanceId);
+        if(server == null){
+            logger.debug("cannot find {} {} instance", serverName, instanceId);
+            return true;
+        }
+        index.getLoadBalancer().markServerDown(server);
+        if(this.offlineInRegistry(server)){
+            this.updateServerList(serverName, index);
+            logger.info("evict {} {} from ribbon", serverName, instanceId);
+        }else{
+            index.invalidate();
+            index.notifyWaiters();
+            logger.info("mark {} {} down in ribbon, registry status is still up", serverName, instanceId);
+        }
+        return !server.isAlive() || index.find(instanceId) == null;
+    }
 
-        DynamicServerListLoadBalancer balancer = annoContext.getBean(DynamicServerListLoadBalancer.class);
-        if(balancer == null){
-            logger.debug("cannot find {} DynamicServerListLoadBalancer", serverName);
-            return serverList;
+    /**
+     * 本地注册表中实例是否已下线(DOWN、OUT_OF_SERVICE)或不存在
+     * 没有EurekaClient时以ribbon持有的实例状态为准
+     */
+    private boolean offlineInRegistry(Server server){
+        if(!(server instanceof DiscoveryEnabledServer)){
+            return false;
         }
+        InstanceInfo instance = ((DiscoveryEnabledServer)server).getInstanceInfo();
+        if(this.discoveryClient != null){
+            Application app = this.discoveryClient.getApplication(instance.getAppName());
+            instance = app == null ? null : app.getByInstanceId(instance.getInstanceId());
+        }
+        return instance == null
+                || instance.getStatus() == InstanceInfo.InstanceStatus.DOWN
+                || instance.getStatus() == InstanceInfo.InstanceStatus.OUT_OF_SERVICE;
+    }
 
-        serverList = balancer.getAllServers();
-        
-        return serverList;
+    /**
+     * 按本地注册表立即刷新指定服务的ribbon服务列表
+     * @param serverName
+     * @return 是否已刷新，没有对应的ribbon客户端或不支持动态服务列表时返回false
+     */
+    public boolean refreshServerList(String serverName){
+        RibbonServerIndex index = this.serverIndex(serverName);
+        if(index == null){
+            logger.debug("cannot find any {} server", serverName);
+            return false;
+        }
+        return this.updateServerList(serverName, index);
     }
 
+    private boolean updateServerList(String serverName, RibbonServerIndex index){
+        BaseLoadBalancer balancer = index.getLoadBalancer();
+        boolean updated = false;
+        if(balancer instanceof DynamicServerListLoadBalancer){
+            try{
+                ((DynamicServerListLoadBalancer)balancer).updateListOfServers();
+                updated = true;
+            }catch(Exception e){
+                logger.warn("update {} server list error: {}", serverName, e.getMessage());
+            }
+        }
+        index.invalidate();
+        index.notifyWaiters();
+        return updated;
+    }
 
     /**
-     * ribbon中查找Server
-     * @param serverList
+     * 长轮询：等待指定服务的指定实例从ribbon的服务列表中移除
+     * 实例移除时立即返回true，超时返回当时的检查结果，等待期间不占用servlet线程
+     * @param serverName
      * @param instanceId
+     * @param timeout 等待时间，单位毫秒，不超过配置的long-poll-timeout
      * @return
      */
-    private Server findServer(List<Server> serverList, String instanceId){
-        for(Server server : serverList){
-            DiscoveryEnabledServer dServer = (DiscoveryEnabledServer)server;
-            InstanceInfo instanceInfo = dServer.getInstanceInfo();
-            String serverInstanceId = instanceInfo.getInstanceId();
-            if(serverInstanceId.equalsIgnoreCase(instanceId)){
-                return server;
+    public DeferredResult<Boolean> waitRemoved(final String serverName, final String instanceId, long timeout){
+        final DeferredResult<Boolean> result = new DeferredResult<>(Math.max(1, Math.min(timeout, this.maxWaitTimeout)));
+        final RibbonServerIndex index = this.serverIndex(serverName);
+        if(index == null || index.isRemoved(instanceId)){
+            result.setResult(true);
+            return result;
+        }
+        final RibbonServerIndex.RemovalWaiter waiter = index.awaitRemoval(instanceId, new Runnable() {
+            @Override
+            public void run() {
+                result.setResult(true);
+            }
+        });
+        result.onTimeout(new Runnable() {
+            @Override
+            public void run() {
+                result.setResult(check(serverName, instanceId));
             }
+        });
+        result.onCompletion(new Runnable() {
+            @Override
+            public void run() {
+                index.cancelWaiter(waiter);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 获取ribbon客户端的服务实例索引，ribbon context首次出现或被重建时创建
+     * 同一客户端的并发请求只创建一次，不同客户端互不阻塞
+     * @param serverName
+     * @return 没有对应的ribbon context时返回null
+     */
+    public RibbonServerIndex serverIndex(String serverName){
+        if(this.contexts == null){
+            return null;
+        }
+        final AnnotationConfigApplicationContext context = this.contexts.get(serverName);
+        if(context == null){
+            return null;
+        }
+        RibbonServerIndex index = this.indexes.get(serverName);
+        if(index != null && index.getContext() == context){
+            return index;
+        }
+        return this.indexes.compute(serverName, new BiFunction<String, RibbonServerIndex, RibbonServerIndex>() {
+            @Override
+            public RibbonServerIndex apply(String name, RibbonServerIndex current) {
+                if(current != null && current.getContext() == context){
+                    return current;
+                }
+                return createIndex(name, context);
+            }
+        });
+    }
+
+    /**
+     * 获取ribbon加载的context
+     * @return
+     */
+    private Map<String, AnnotationConfigApplicationContext> ribbonContext(){
+        Field field = ReflectionUtils.findField(springClientFactory.getClass(), "contexts");
+        if(field == null){
+            logger.warn("cannot find ribbon contexts field in {}", springClientFactory.getClass());
+            return null;
+        }
+        field.setAccessible(true);
+        Map<String, AnnotationConfigApplicationContext> contexts = (Map)ReflectionUtils.getField(field, springClientFactory);
+        logger.debug("ribbon contexts == null: {}", contexts == null);
+        return contexts;
+    }
+
+    private RibbonServerIndex createIndex(String serverName, AnnotationConfigApplicationContext context){
+        ILoadBalancer balancer;
+        try{
+            balancer = context.getBean(ILoadBalancer.class);
+        }catch(BeansException e){
+            logger.debug("cannot find {} ILoadBalancer", serverName);
+            return null;
+        }
+        if(!(balancer instanceof BaseLoadBalancer)){
+            logger.debug("{} ILoadBalancer {} is not supported", serverName, balancer.getClass());
+            return null;
         }
-        return null;
+        RibbonServerIndex index = new RibbonServerIndex(serverName, context, (BaseLoadBalancer)balancer);
+        logger.debug("create {} server index, size: {}", serverName, index.size());
+        return index;
     }
 }
@@ -0,0 +1,138 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.ribbon.RibbonServerIndex;
+
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * 单个ribbon客户端的check结果缓存：instanceId -> 结果
+ * 同一实例的并发检查只计算一次，其余请求等待同一个结果；
+ * 结果在ttl内有效，ribbon服务列表变化或索引重建后失效
+ * ribbon ping引起的存活状态变化不会使缓存失效，最多滞后ttl
+ */
+public class CheckResultCache {
+
+    private final long ttlMillis;
+
+    private final int maxSize;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    public CheckResultCache(long ttlMillis, int maxSize){
+        this.ttlMillis = ttlMillis;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 获取缓存的检查结果，没有或已失效时由loader计算
+     * @param instanceId
+     * @param index 计算结果所依据的索引
+     * @param loader
+     * @return
+     */
+    public boolean get(String instanceId, RibbonServerIndex index, Callable<Boolean> loader){
+        long now = System.currentTimeMillis();
+        long version = index.getVersion();
+        Entry entry = this.entries.get(instanceId);
+        if(this.usable(entry, index, version, now)){
+            return this.valueOf(entry.task, loader);
+        }
+        Entry created = new Entry(index, version, now + this.ttlMillis, new FutureTask<>(loader));
+        boolean won = entry == null ? this.entries.putIfAbsent(instanceId, created) == null : this.entries.replace(instanceId, entry, created);
+        if(won){
+            created.task.run();
+            if(this.entries.size() > this.maxSize){
+                this.trim(now);
+            }
+            return this.valueOf(created.task, loader);
+        }
+        //其他线程刚放入了新结果
+        entry = this.entries.get(instanceId);
+        if(this.usable(entry, index, version, now)){
+            return this.valueOf(entry.task, loader);
+        }
+        return this.call(loader);
+    }
+
+    /**
+     * 已计算完成且仍有效的结果，不创建任何对象
+     * @param instanceId
+     * @param index
+     * @return 没有时返回null
+     */
+    public Boolean peek(String instanceId, RibbonServerIndex index){
+        Entry entry = this.entries.get(instanceId);
+        if(!this.usable(entry, index, index.getVersion(), System.currentTimeMillis()) || !entry.task.isDone()){
+            return null;
+        }
+        try{
+            return entry.task.get();
+        }catch(InterruptedException | ExecutionException e){
+            return null;
+        }
+    }
+
+    public int size(){
+        return this.entries.size();
+    }
+
+    private boolean usable(Entry entry, RibbonServerIndex index, long version, long now){
+        return entry != null && entry.index == index && entry.version == version && now < entry.expireAt;
+    }
+
+    /**
+     * 先清除过期的结果，仍超过上限时全部清除
+     */
+    private void trim(long now){
+        Iterator<Entry> iterator = this.entries.values().iterator();
+        while(iterator.hasNext()){
+            if(now >= iterator.next().expireAt){
+                iterator.remove();
+            }
+        }
+        if(this.entries.size() > this.maxSize){
+            this.entries.clear();
+        }
+    }
+
+    private boolean valueOf(FutureTask<Boolean> task, Callable<Boolean> loader){
+        try{
+            return task.get();
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return this.call(loader);
+        }catch(ExecutionException e){
+            return this.call(loader);
+        }
+    }
+
+    private boolean call(Callable<Boolean> loader){
+        try{
+            return loader.call();
+        }catch(Exception e){
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static class Entry {
+
+        final RibbonServerIndex index;
+
+        final long version;
+
+        final long expireAt;
+
+        final FutureTask<Boolean> task;
+
+        Entry(RibbonServerIndex index, long version, long expireAt, FutureTask<Boolean> task){
+            this.index = index;
+            this.version = version;
+            this.expireAt = expireAt;
+            this.task = task;
+        }
+    }
+}
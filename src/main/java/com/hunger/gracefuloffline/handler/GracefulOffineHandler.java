@@ -1,77 +1,329 @@
 package com.hunger.gracefuloffline.handler;
 
+import com.hunger.gracefuloffline.client.AggregateCheckResult;
+import com.hunger.gracefuloffline.client.CheckResult;
+import com.hunger.gracefuloffline.client.RemoteCheckClient;
+import com.hunger.gracefuloffline.client.RequestHandle;
+import com.hunger.gracefuloffline.drain.DrainCoordinator;
 import com.hunger.gracefuloffline.endpoint.GracefulOfflineEndpoint;
+import com.hunger.gracefuloffline.metrics.GracefulOfflineMetrics;
 import com.hunger.gracefuloffline.properties.CustomPath;
 import com.hunger.gracefuloffline.properties.GracefulOfflineProperties;
+import com.hunger.gracefuloffline.registry.ConsumerIndex;
+import com.hunger.gracefuloffline.registry.RollingOfflineCoordinator;
 import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.CacheRefreshedEvent;
 import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.EurekaEvent;
+import com.netflix.discovery.EurekaEventListener;
 import com.netflix.discovery.shared.Application;
 import com.netflix.discovery.shared.Applications;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.boot.ExitCodeGenerator;
 import org.springframework.boot.SpringApplication;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
-import org.springframework.http.HttpMethod;
-import org.springframework.http.HttpStatus;
-import org.springframework.http.client.ClientHttpResponse;
-import org.springframework.web.client.HttpMessageConverterExtractor;
-import org.springframework.web.client.ResponseExtractor;
-import org.springframework.web.client.RestTemplate;
-
-import java.io.IOException;
-import java.net.URI;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class GracefulOffineHandler implements ApplicationContextAware, EurekaEventListener, DisposableBean{
 
-public class GracefulOffineHandler implements ApplicationContextAware{
+    private static final String IN_PROCESS_MESSAGE = "Shutting down gracefully in process, please wait";
 
-    private static final Map<String, Object> IN_PROCESS_MESSAGE = Collections.unmodifiableMap(Collections.singletonMap("message", "Shutting down gracefully in process, please wait"));
+    private static final String SHUTDOWN_MESSAGE = "Shutting down gracefully, please check after a while";
+
+    private static final String QUEUED_MESSAGE = "Queued for rolling offline, please check after a while";
 
-    private static final Map<String, Object> SHUTDOWN_MESSAGE = Collections.unmodifiableMap(Collections.singletonMap("message", "Shutting down gracefully, please check after a while"));
-    
     private static final Logger logger = LoggerFactory.getLogger(GracefulOffineHandler.class);
-    
+
     private static final String PARAM_FOMAT = "serverName=%s&instanceId=%s";
-    
+
+    /**
+     * 聚合检查中委托实例检查成员的时间比下线方的请求超时少留出的余量，用于返回结果
+     */
+    private static final long AGGREGATE_TIMEOUT_MARGIN_MILLIS = 500;
+
+    /**
+     * status中最多列出的等待实例数
+     */
+    private static final int STATUS_WAITING_LIMIT = 50;
+
     private ApplicationContext applicationContext;
-    
+
     private volatile boolean isShutdowning;
-    
+
+    /**
+     * 正在执行的下线任务
+     */
+    private volatile ShutdownAsyncTask currentTask;
+
+    /**
+     * 后台维护的下线计划
+     */
+    private volatile ShutdownPlan plan;
+
     private EurekaClient discoveryClient;
 
     private GracefulOfflineProperties properties;
-    
-    public GracefulOffineHandler(EurekaClient discoveryClient, GracefulOfflineProperties properties){
+
+    private InstanceCheckExecutor checkExecutor;
+
+    private RemoteCheckClient remoteCheckClient;
+
+    /**
+     * 消费者索引，未开启时为null
+     */
+    private ConsumerIndex consumerIndex;
+
+    /**
+     * 关闭应用前并行等待正在处理的请求、线程池等完成
+     */
+    private DrainCoordinator drainCoordinator;
+
+    /**
+     * 同服务多实例同时下线时的名额协调，未开启时为null
+     */
+    private RollingOfflineCoordinator rollingCoordinator;
+
+    /**
+     * 按可用区区分检查，未开启时为null
+     */
+    private ZoneAwareness zoneAwareness;
+
+    /**
+     * 无法连接的实例熔断，多次下线尝试之间共用
+     */
+    private PeerCircuitBreaker circuitBreaker;
+
+    private GracefulOfflineMetrics metrics;
+
+    /**
+     * 会阻止下线的检查结果，启动时解析，配置错误时应用无法启动
+     */
+    private final EnumSet<CheckResult> blockOn;
+
+    /**
+     * 最新的下线进度快照，只整体替换，读取时不加锁
+     */
+    private final AtomicReference<ShutdownStatus> status = new AtomicReference<>(ShutdownStatus.idle());
+
+    private final AtomicLong statusSequence = new AtomicLong();
+
+    private final List<ShutdownStatusListener> statusListeners = new CopyOnWriteArrayList<>();
+
+    public GracefulOffineHandler(EurekaClient discoveryClient, GracefulOfflineProperties properties, InstanceCheckExecutor checkExecutor, RemoteCheckClient remoteCheckClient,
+                                 ConsumerIndex consumerIndex, DrainCoordinator drainCoordinator, RollingOfflineCoordinator rollingCoordinator,
+                                 ZoneAwareness zoneAwareness, GracefulOfflineMetrics metrics){
         this.discoveryClient = discoveryClient;
         this.properties = properties;
+        this.checkExecutor = checkExecutor;
+        this.remoteCheckClient = remoteCheckClient;
+        this.consumerIndex = consumerIndex;
+        this.drainCoordinator = drainCoordinator;
+        this.rollingCoordinator = rollingCoordinator;
+        this.zoneAwareness = zoneAwareness;
+        this.metrics = metrics;
+        this.blockOn = properties.obtainBlockResults();
+        this.circuitBreaker = new PeerCircuitBreaker(properties.getBreakerThreshold(), properties.getBreakerOpenInterval());
+        this.discoveryClient.registerEventListener(this);
     }
-    
-    public Map<String, Object> shutdown(){
+
+    /**
+     * 从注册中心下线后立即返回，检查其他服务实例和关闭应用都在后台执行
+     * @return 包含本次下线的handle，可通过status查询进度
+     */
+    public synchronized Map<String, Object> shutdown(){
         if(this.isShutdowning){
-            return IN_PROCESS_MESSAGE;
+            return this.message(IN_PROCESS_MESSAGE, this.currentTask);
         }
-        //获取当前服务信息
-        InstanceInfo instanceInfo = discoveryClient.getApplicationInfoManager().getInfo();
-        String appName = instanceInfo.getAppName();
-        String instanceId = instanceInfo.getInstanceId();
-        String serverName = appName.toLowerCase();
+        this.isShutdowning = true;
+        if(this.rollingCoordinator != null){
+            //排队等待下线名额，获得时已改为OUT_OF_SERVICE，保持注册直到应用关闭
+            this.publishStatus("queued", null, null);
+            this.rollingCoordinator.enqueue(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        startShutdown(false);
+                    }catch(RuntimeException e){
+                        logger.error("start shutdown error, release rolling offline slot", e);
+                        rollingCoordinator.release();
+                    }
+                }
+            });
+            return this.message(QUEUED_MESSAGE, null);
+        }
+        ShutdownAsyncTask task = this.startShutdown(true);
+        return this.message(SHUTDOWN_MESSAGE, task);
+    }
 
-        List<InstanceInfo> needCheckInstances = this.filterIgnoreService(appName);
-        
-        String paramStr = String.format(PARAM_FOMAT, serverName, instanceId);
+    /**
+     * 未能开始下线任务时恢复isShutdowning，可以再次请求下线
+     */
+    private synchronized ShutdownAsyncTask startShutdown(boolean deregister){
+        try{
+            ShutdownPlan shutdownPlan;
+            if(deregister){
+                shutdownPlan = this.currentPlan();
+                //从注册中心下线
+                discoveryClient.shutdown();
+            }else{
+                //排队期间不刷新下线计划
+                this.refreshPlan();
+                shutdownPlan = this.plan;
+            }
+
+            ShutdownAsyncTask task = new ShutdownAsyncTask(shutdownPlan, null, properties.getWait(), properties.getForce());
+            this.currentTask = task;
+            task.start();
+            return task;
+        }catch(RuntimeException e){
+            this.isShutdowning = false;
+            throw e;
+        }
+    }
+
+    /**
+     * 协同下线：当前实例作为协调者，先让同服务的其他指定实例从注册中心下线，
+     * 再对整组实例执行一个批量检查循环，确认后通知其他实例关闭，最后关闭自身
+     * @param instanceIds 需要一起下线的同服务实例，不必包含当前实例
+     * @return 包含本次下线的handle，可通过status查询进度
+     */
+    public synchronized Map<String, Object> shutdownGroup(List<String> instanceIds){
+        if(this.isShutdowning){
+            return this.message(IN_PROCESS_MESSAGE, this.currentTask);
+        }
+        ShutdownPlan shutdownPlan = this.currentPlan();
+        ShutdownGroup group = this.buildGroup(shutdownPlan, instanceIds);
+        this.isShutdowning = true;
+
+        ShutdownAsyncTask task;
+        try{
+            //组内实例全部从注册中心下线
+            this.callMembers(group, false);
+            discoveryClient.shutdown();
+
+            task = new ShutdownAsyncTask(shutdownPlan, group, properties.getWait(), properties.getForce());
+            this.currentTask = task;
+            task.start();
+        }catch(RuntimeException e){
+            this.isShutdowning = false;
+            throw e;
+        }
+
+        return this.message(SHUTDOWN_MESSAGE, task);
+    }
+
+    /**
+     * 协同下线时由协调者调用，后台等待正在处理的请求完成后关闭应用
+     * @return 已在下线中时返回false
+     */
+    public synchronized Boolean exit(){
+        if(this.isShutdowning){
+            return false;
+        }
+        this.isShutdowning = true;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ShutdownAsyncThread-");
+        threadFactory.setDaemon(true);
+        threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                publishStatus("draining", null, null);
+                drainInFlight();
+                publishStatus("closing", null, null);
+                closeContext();
+            }
+        }).start();
+        return true;
+    }
+
+    /**
+     * 下线进度，检查进行中时附带仍在等待的实例及其最近一次检查结果
+     * @return
+     */
+    public Map<String, Object> status(){
+        Map<String, Object> status = this.status.get().toMap();
+        ShutdownAsyncTask task = this.currentTask;
+        if(task == null || task.finished.get()){
+            return status;
+        }
+        Map<String, Object> withWaiting = new LinkedHashMap<>(status);
+        withWaiting.put("waiting", task.waitingPeers());
+        return withWaiting;
+    }
+
+    /**
+     * 当前的下线进度快照
+     * @return
+     */
+    public ShutdownStatus currentStatus(){
+        return this.status.get();
+    }
+
+    /**
+     * 注册下线进度监听，之后的每次变化都会回调
+     * @param listener
+     */
+    public void addStatusListener(ShutdownStatusListener listener){
+        this.statusListeners.add(listener);
+    }
+
+    public void removeStatusListener(ShutdownStatusListener listener){
+        this.statusListeners.remove(listener);
+    }
 
-        List<InstanceInfo> firstFilterInstances = this.checkInstanceRibbon(needCheckInstances, paramStr);
-        
-        //从注册中心下线
-        discoveryClient.shutdown();
-        
-        ShutdownAsyncTask task = new ShutdownAsyncTask(firstFilterInstances, paramStr, properties.getWait(), properties.getForce());
-        Thread shutdownAsyncThread = new Thread(task, "ShutdownAsyncThread");
-        shutdownAsyncThread.start();
-        
-        return SHUTDOWN_MESSAGE;
+    /**
+     * 生成新的进度快照并通知监听，并发发布时只保留序号最大的快照
+     * @param event
+     * @param task 协同下线中被协调者通知关闭时为null
+     * @param peer
+     */
+    private void publishStatus(String event, ShutdownAsyncTask task, PeerTarget peer){
+        long sequence = this.statusSequence.incrementAndGet();
+        ShutdownStatus next;
+        if(task == null){
+            next = new ShutdownStatus(sequence, event, null, this.isShutdowning, null, event, 0, 0, 0, 0, null);
+        }else{
+            next = new ShutdownStatus(sequence, event, peer == null ? null : peer.toString(), this.isShutdowning,
+                    task.handle, task.phase, task.startTime, task.total, task.remainingCount(), task.skipped,
+                    task.group == null ? null : task.group.getInstanceIds());
+        }
+        ShutdownStatus current;
+        do{
+            current = this.status.get();
+            if(current.getSequence() > sequence){
+                return;
+            }
+        }while(!this.status.compareAndSet(current, next));
+        for(ShutdownStatusListener listener : this.statusListeners){
+            try{
+                listener.onStatus(next);
+            }catch(Exception e){
+                logger.debug("shutdown status listener error: {}", e.getMessage());
+            }
+        }
+    }
+
+    public boolean isShutdowning(){
+        return this.isShutdowning;
     }
 
     public Boolean unregister(){
@@ -83,88 +335,425 @@ public class GracefulOffineHandler implements ApplicationContextAware{
             return false;
         }
     }
-    
+
+    @Override
+    public void onEvent(EurekaEvent event) {
+        if(event instanceof CacheRefreshedEvent && !this.isShutdowning){
+            try{
+                this.refreshPlan();
+            }catch(Exception e){
+                logger.warn("refresh shutdown plan error: {}", e.getMessage());
+            }
+        }
+    }
+
     /**
-     * 过滤掉当前服务实例和properties配置的ignoreService
+     * 根据本地注册表重新构建下线计划，实例信息未变化的沿用之前的检查地址和状态
+     */
+    public synchronized void refreshPlan(){
+        //获取当前服务信息
+        InstanceInfo instanceInfo = discoveryClient.getApplicationInfoManager().getInfo();
+        String appName = instanceInfo.getAppName();
+        //对方按小写instanceId建立索引，传小写避免对方每次查找时转换
+        String instanceId = instanceInfo.getInstanceId().toLowerCase();
+        String serverName = appName.toLowerCase();
+        String paramStr = String.format(PARAM_FOMAT, serverName, instanceId);
+
+        ShutdownPlan previousPlan = this.plan;
+        Map<String, PeerTarget> previous = previousPlan != null && previousPlan.getParamStr().equals(paramStr)
+                ? previousPlan.peersById() : Collections.<String, PeerTarget>emptyMap();
+
+        List<InstanceInfo> needCheckInstances = this.filterIgnoreService(appName);
+        List<PeerTarget> peers = new ArrayList<>(needCheckInstances.size());
+        for(InstanceInfo instance : needCheckInstances){
+            PeerTarget peer = previous.get(instance.getInstanceId());
+            if(peer == null || peer.getInstance() != instance){
+                String lowerAppName = instance.getAppName().toLowerCase();
+                PeerTarget updated = new PeerTarget(instance, lowerAppName, this.buildEndpointUrl(instance, lowerAppName), paramStr, this.properties.getLeanCheck());
+                if(peer != null){
+                    updated.inherit(peer);
+                }
+                peer = updated;
+            }
+            peers.add(peer);
+        }
+        this.plan = new ShutdownPlan(serverName, instanceId, paramStr, peers);
+        logger.debug("shutdown plan refreshed, {} peers", peers.size());
+    }
+
+    /**
+     * 按最新的本地注册表计算需要检查的其他服务实例
+     * @return
+     */
+    public List<PeerTarget> currentPeers(){
+        this.refreshPlan();
+        return this.plan.getPeers();
+    }
+
+    private ShutdownPlan currentPlan(){
+        if(this.plan == null){
+            this.refreshPlan();
+        }
+        return this.plan;
+    }
+
+    /**
+     * 在本地注册表中查找同服务的指定实例
+     * @param plan
+     * @param instanceIds
+     * @return
+     */
+    private ShutdownGroup buildGroup(ShutdownPlan plan, List<String> instanceIds){
+        Set<String> wanted = new LinkedHashSet<>();
+        for(String instanceId : instanceIds){
+            wanted.add(instanceId.trim().toLowerCase());
+        }
+        wanted.remove(plan.getInstanceId());
+        List<String> groupIds = new ArrayList<>();
+        groupIds.add(plan.getInstanceId());
+        List<PeerTarget> members = new ArrayList<>();
+        Application app = discoveryClient.getApplication(plan.getServerName());
+        if(app != null){
+            for(InstanceInfo instance : app.getInstances()){
+                String instanceId = instance.getInstanceId().toLowerCase();
+                if(wanted.remove(instanceId)){
+                    groupIds.add(instanceId);
+                    members.add(new PeerTarget(instance, plan.getServerName(), this.buildEndpointUrl(instance, plan.getServerName()), plan.getParamStr(), this.properties.getLeanCheck()));
+                }
+            }
+        }
+        if(!wanted.isEmpty()){
+            logger.warn("cannot find {} instances: {}", plan.getServerName(), wanted);
+        }
+        return new ShutdownGroup(plan.getServerName(), groupIds, members);
+    }
+
+    /**
+     * 并发通知组内其他实例从注册中心下线或关闭
+     * @param group
+     * @param exit true调用exit端点，false调用unregister端点
+     */
+    private void callMembers(ShutdownGroup group, final boolean exit){
+        if(group.getMembers().isEmpty()){
+            return;
+        }
+        Map<PeerTarget, Callable<Boolean>> calls = new LinkedHashMap<>();
+        for(final PeerTarget member : group.getMembers()){
+            calls.put(member, new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return exit ? remoteCheckClient.exit(member.getEndpointUrl() + "/exit")
+                            : remoteCheckClient.unregister(member.getEndpointUrl() + "/unregister");
+                }
+            });
+        }
+        String action = exit ? "exit" : "unregister";
+        Map<PeerTarget, Boolean> results = this.checkExecutor.invokeAll(calls, false);
+        for(Map.Entry<PeerTarget, Boolean> entry : results.entrySet()){
+            if(Boolean.TRUE.equals(entry.getValue())){
+                logger.info("{} {} success", entry.getKey(), action);
+            }else{
+                logger.warn("{} {} return {}", entry.getKey(), action, entry.getValue());
+            }
+        }
+    }
+
+    private Map<String, Object> message(String message, ShutdownAsyncTask task){
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("message", message);
+        if(task != null){
+            result.put("handle", task.handle);
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * 获取需要检查的服务实例
+     * 有消费者索引时只检查发布了ribbon客户端元数据且调用当前服务的实例，
+     * 没有发布元数据的实例无法判断，再按ignoreService过滤后全部检查
      * @param currAppName
      * @return
      */
     private List<InstanceInfo> filterIgnoreService(String currAppName){
+        if(this.consumerIndex == null){
+            return this.filterIgnoreService(currAppName, this.allInstances());
+        }
+        this.consumerIndex.refresh();
+        List<InstanceInfo> needCheckInstances = new ArrayList<>();
+        for(InstanceInfo instance : this.consumerIndex.consumersOf(currAppName)){
+            if(!instance.getAppName().equalsIgnoreCase(currAppName)){
+                needCheckInstances.add(instance);
+            }
+        }
+        int consumerCount = needCheckInstances.size();
+        needCheckInstances.addAll(this.filterIgnoreService(currAppName, this.consumerIndex.unknownConsumers()));
+        logger.debug("{} instances call this service, {} instances unknown", consumerCount, needCheckInstances.size() - consumerCount);
+        return needCheckInstances;
+    }
+
+    /**
+     * 过滤掉当前服务实例和properties配置的ignoreService
+     * @param currAppName
+     * @param instances
+     * @return
+     */
+    private List<InstanceInfo> filterIgnoreService(String currAppName, List<InstanceInfo> instances){
         List<InstanceInfo> needCheckInstances = new ArrayList<>();
         TreeSet<String> ignoreService = properties.ontainIgnoreServices();
-        Applications apps = discoveryClient.getApplications();
-        for(Application app : apps.getRegisteredApplications()){
+        for(InstanceInfo instance : instances){
             //过滤掉自身
-            String lowerAppName = app.getName().toLowerCase();
+            String lowerAppName = instance.getAppName().toLowerCase();
             if(!lowerAppName.equalsIgnoreCase(currAppName) && !ignoreService.contains(lowerAppName)){
-                needCheckInstances.addAll(app.getInstances());
+                needCheckInstances.add(instance);
             }
         }
         return needCheckInstances;
     }
-    
-    
-    private List<InstanceInfo> checkInstanceRibbon(List<InstanceInfo> instanceInfoList, String paramStr){
-        List<InstanceInfo> leftList = new ArrayList<>();
-        for(InstanceInfo instance : instanceInfoList){
-            String lowerAppName = instance.getAppName().toLowerCase();
-            CustomPath customPath = this.properties.getAppCustomPath(lowerAppName);
-            StringBuilder url = new StringBuilder();
-            if(customPath != null){
-                if(customPath.getManagementPort() != null && customPath.getManagementPort() != 0){
-                    url = new StringBuilder("http://");
-                    url.append(instance.getIPAddr()).append(":").append(customPath.getManagementPort());
-                    if(customPath.getManagementContextPath() != null && customPath.getManagementContextPath().length() > 0){
-                        url.append(customPath.getManagementContextPath()).append("/");
-                    }
-                }else{
-                    url = new StringBuilder(instance.getHomePageUrl().substring(0, instance.getHomePageUrl().length()-1));
-                    if(customPath.getServerContextPath() != null && customPath.getServerContextPath().length() > 0){
-                        url.append(customPath.getServerContextPath());
-                    }
-                    if(customPath.getManagementContextPath() != null && customPath.getManagementContextPath().length() > 0){
-                        url.append(customPath.getManagementContextPath());
-                    }
-                    url.append("/");
+
+    private List<InstanceInfo> allInstances(){
+        List<InstanceInfo> instances = new ArrayList<>();
+        Applications apps = discoveryClient.getApplications();
+        for(Application app : apps.getRegisteredApplications()){
+            instances.addAll(app.getInstances());
+        }
+        return instances;
+    }
+
+
+    /**
+     * 通知其他服务实例将当前服务实例从ribbon中移除
+     * @param peer
+     */
+    private void evictOneInstanceRemote(PeerTarget peer){
+        try{
+            Boolean evicted = this.clientFor(peer).evict(peer.getEvictUrl());
+            logger.info("{} {} return evicted: {}", peer.getAppName(), peer.getEvictUrl(), evicted);
+        }catch (Exception e){
+            logger.error("{} {} {}", peer.getAppName(), peer.getEvictUrl(), e.getMessage());
+        }
+    }
+
+    /**
+     * 跨区实例使用单独的客户端，有自己的超时时间
+     * @param peer
+     * @return
+     */
+    private RemoteCheckClient clientFor(PeerTarget peer){
+        if(this.zoneAwareness != null && !this.zoneAwareness.isLocal(peer)){
+            return this.zoneAwareness.getCrossZoneClient();
+        }
+        return this.remoteCheckClient;
+    }
+
+    /**
+     * 跨区实例在单独的调度线程中检查，与同区实例并行且互不占用线程
+     * @param peer
+     * @return
+     */
+    private ScheduledExecutorService schedulerFor(PeerTarget peer){
+        if(this.zoneAwareness != null && !this.zoneAwareness.isLocal(peer)){
+            return this.zoneAwareness.getCrossZoneScheduler();
+        }
+        return this.checkExecutor.getScheduler();
+    }
+
+    /**
+     * 请求其他服务实例立即刷新eureka注册表和ribbon列表
+     * @param peer
+     */
+    private void refreshOneInstanceRemote(PeerTarget peer){
+        try{
+            Boolean scheduled = this.clientFor(peer).refresh(peer.getRefreshUrl());
+            logger.info("{} {} return refresh scheduled: {}", peer.getAppName(), peer.getRefreshUrl(), scheduled);
+        }catch (Exception e){
+            logger.error("{} {} {}", peer.getAppName(), peer.getRefreshUrl(), e.getMessage());
+        }
+    }
+
+    /**
+     * 其他服务实例gracefuloffline端点的地址
+     * @param instance
+     * @param lowerAppName
+     * @return
+     */
+    private String buildEndpointUrl(InstanceInfo instance, String lowerAppName){
+        return buildEndpointUrl(instance, this.properties.getAppCustomPath(lowerAppName));
+    }
+
+    static String buildEndpointUrl(InstanceInfo instance, CustomPath customPath){
+        StringBuilder url = new StringBuilder();
+        if(customPath != null){
+            if(customPath.getManagementPort() != null && customPath.getManagementPort() != 0){
+                url = new StringBuilder("http://");
+                url.append(instance.getIPAddr()).append(":").append(customPath.getManagementPort());
+                if(customPath.getManagementContextPath() != null && customPath.getManagementContextPath().length() > 0){
+                    url.append(customPath.getManagementContextPath()).append("/");
                 }
             }else{
-                url = new StringBuilder(instance.getHomePageUrl());
+                url = new StringBuilder(instance.getHomePageUrl().substring(0, instance.getHomePageUrl().length()-1));
+                if(customPath.getServerContextPath() != null && customPath.getServerContextPath().length() > 0){
+                    url.append(customPath.getServerContextPath());
+                }
+                if(customPath.getManagementContextPath() != null && customPath.getManagementContextPath().length() > 0){
+                    url.append(customPath.getManagementContextPath());
+                }
+                url.append("/");
+            }
+        }else{
+            url = new StringBuilder(instance.getHomePageUrl());
+        }
+        url.append(GracefulOfflineEndpoint.ID );
+        return url.toString();
+    }
+
+    /**
+     * 协同下线时对整组实例做一次批量检查，对方不支持批量检查时逐个检查
+     * @param peer
+     * @param group
+     * @return
+     */
+    private CheckResult checkGroupRemote(PeerTarget peer, ShutdownGroup group){
+        if(!this.circuitBreaker.allowRequest(peer.getInstanceId())){
+            logger.debug("{} circuit open, skip check", peer);
+            peer.recordResult(CheckResult.UNREACHABLE);
+            return CheckResult.UNREACHABLE;
+        }
+        CheckResult result = null;
+        if(!peer.isBatchUnsupported()){
+            String url = peer.getEndpointUrl() + "/check/batch";
+            long start = System.nanoTime();
+            try{
+                result = this.clientFor(peer).checkBatch(url, group.getBatchParams());
+                logger.info("{} {} return {}", peer.getAppName(), url, result);
+            }catch (Exception e){
+                logger.error("{} {} {}", peer.getAppName(), url, e.getMessage());
+                result = CheckResult.IN_USE;
+            }
+            this.metrics.recordPeerCheck(peer.getAppName(), result, System.nanoTime() - start);
+            if(result == CheckResult.NOT_INSTALLED){
+                logger.info("{} does not support batch check", peer);
+                peer.setBatchUnsupported(true);
+                result = null;
+            }
+        }
+        if(result == null){
+            result = CheckResult.ABSENT;
+            for(String instanceId : group.getInstanceIds()){
+                String url = peer.getEndpointUrl() + "/check?serverName=" + group.getServerName() + "&instanceId=" + instanceId;
+                long start = System.nanoTime();
+                try{
+                    result = this.clientFor(peer).check(url);
+                }catch (Exception e){
+                    logger.error("{} {} {}", peer.getAppName(), url, e.getMessage());
+                    result = CheckResult.IN_USE;
+                }
+                this.metrics.recordPeerCheck(peer.getAppName(), result, System.nanoTime() - start);
+                if(result != CheckResult.ABSENT){
+                    break;
+                }
             }
-            url.append(GracefulOfflineEndpoint.ID ).append("/check?").append(paramStr);
-            boolean notExist = this.checkOneInstanceRemote(lowerAppName, url.toString());
-            if(!notExist){
-                leftList.add(instance);
+            logger.info("{} check {} instances return {}", peer, group.getInstanceIds().size(), result);
+        }
+        this.circuitBreaker.record(peer.getInstanceId(), result);
+        peer.recordResult(result);
+        return result;
+    }
+
+    /**
+     * 通知其他服务实例将组内所有实例从ribbon中移除
+     * @param peer
+     * @param group
+     */
+    private void evictGroupRemote(PeerTarget peer, ShutdownGroup group){
+        for(String instanceId : group.getInstanceIds()){
+            String url = peer.getEndpointUrl() + "/evict?serverName=" + group.getServerName() + "&instanceId=" + instanceId;
+            try{
+                Boolean evicted = this.clientFor(peer).evict(url);
+                logger.info("{} {} return evicted: {}", peer.getAppName(), url, evicted);
+            }catch (Exception e){
+                logger.error("{} {} {}", peer.getAppName(), url, e.getMessage());
             }
         }
-        return leftList;
     }
 
-    private boolean checkOneInstanceRemote(String appName, String url){
+    /**
+     * 请求委托实例检查其所属服务的所有实例
+     * @param delegate
+     * @param evict 是否让对方先将当前实例从ribbon中移除
+     * @return
+     */
+    /**
+     * @param timeoutMillis 本次请求的超时时间，委托实例检查每个成员的时间比它少留出余量，在请求中止前返回
+     */
+    private AggregateCheckResult checkAggregateRemote(PeerTarget delegate, boolean evict, long timeoutMillis){
+        if(!this.circuitBreaker.allowRequest(delegate.getInstanceId())){
+            logger.debug("{} circuit open, skip check", delegate);
+            return AggregateCheckResult.failed(CheckResult.UNREACHABLE);
+        }
+        long memberTimeout = Math.max(timeoutMillis / 2, timeoutMillis - AGGREGATE_TIMEOUT_MARGIN_MILLIS);
+        String url = delegate.getAggregateUrl(memberTimeout) + (evict ? "&evict=true" : "");
+        AggregateCheckResult result;
+        long start = System.nanoTime();
         try{
-            RestTemplate restTemplate = new RestTemplate();
-            Boolean notExist = restTemplate.execute(URI.create(url), HttpMethod.GET, null, new ResponseExtractor<Boolean>() {
-                @Override
-                public Boolean extractData(ClientHttpResponse clientHttpResponse) throws IOException {
-                    HttpStatus httpStatus = clientHttpResponse.getStatusCode();
-                    if(httpStatus.is2xxSuccessful()){
-                        HttpMessageConverterExtractor messageConverterExtractor = new HttpMessageConverterExtractor(Boolean.class, restTemplate.getMessageConverters());
-                        return (Boolean)messageConverterExtractor.extractData(clientHttpResponse);
-                    }
-                    if(httpStatus.is4xxClientError()){
-                        return false;
-                    }
-                    if(httpStatus.is5xxServerError()){
-                        return false;
-                    }
-                    return false;
-                }
-            });
-            logger.info("{} {} return notExist: {}", appName, url, notExist);
-            return notExist;
+            result = this.clientFor(delegate).checkAggregate(url);
+            logger.info("{} {} return {} {}", delegate.getAppName(), url, result.summary(), result.getInstances());
         }catch (Exception e){
-            logger.error("{} {} {}", appName, url, e.getMessage());
-            return false;
+            logger.error("{} {} {}", delegate.getAppName(), url, e.getMessage());
+            result = AggregateCheckResult.failed(CheckResult.IN_USE);
+        }
+        this.metrics.recordPeerCheck(delegate.getAppName(), result.summary(), System.nanoTime() - start);
+        this.circuitBreaker.record(delegate.getInstanceId(), result.isFailed() ? result.getFailure() : CheckResult.ABSENT);
+        return result;
+    }
+
+    private CheckResult checkOneInstanceRemote(PeerTarget peer){
+        if(!this.circuitBreaker.allowRequest(peer.getInstanceId())){
+            logger.debug("{} circuit open, skip check", peer);
+            peer.recordResult(CheckResult.UNREACHABLE);
+            return CheckResult.UNREACHABLE;
+        }
+        CheckResult result;
+        long start = System.nanoTime();
+        try{
+            result = this.clientFor(peer).check(peer.getCheckUri());
+            logger.info("{} {} return {}", peer.getAppName(), peer.getCheckUrl(), result);
+        }catch (Exception e){
+            logger.error("{} {} {}", peer.getAppName(), peer.getCheckUrl(), e.getMessage());
+            result = CheckResult.IN_USE;
         }
+        this.metrics.recordPeerCheck(peer.getAppName(), result, System.nanoTime() - start);
+        this.circuitBreaker.record(peer.getInstanceId(), result);
+        peer.recordResult(result);
+        return result;
+    }
+
+    /**
+     * @return 对方不支持长轮询时返回NOT_INSTALLED，由调用方改用普通检查
+     */
+    private CheckResult waitOneInstanceRemote(PeerTarget peer, long timeout){
+        if(!this.circuitBreaker.allowRequest(peer.getInstanceId())){
+            logger.debug("{} circuit open, skip check", peer);
+            peer.recordResult(CheckResult.UNREACHABLE);
+            return CheckResult.UNREACHABLE;
+        }
+        String url = peer.getWaitUrl(timeout);
+        CheckResult result;
+        long start = System.nanoTime();
+        try{
+            result = this.clientFor(peer).checkWait(url);
+            logger.info("{} {} return {}", peer.getAppName(), url, result);
+        }catch (Exception e){
+            logger.error("{} {} {}", peer.getAppName(), url, e.getMessage());
+            result = CheckResult.IN_USE;
+        }
+        //不支持长轮询时改用普通检查，由普通检查记录
+        if(result == CheckResult.NOT_INSTALLED){
+            return result;
+        }
+        this.metrics.recordPeerWait(result, System.nanoTime() - start);
+        this.circuitBreaker.record(peer.getInstanceId(), result);
+        peer.recordResult(result);
+        return result;
     }
 
     @Override
@@ -172,52 +761,599 @@ public class GracefulOffineHandler implements ApplicationContextAware{
         this.applicationContext = applicationContext;
     }
 
+    @Override
+    public void destroy() {
+        this.discoveryClient.unregisterEventListener(this);
+    }
 
-    private class ShutdownAsyncTask implements Runnable{
 
+    /**
+     * 下线任务：每个实例按自己的节奏重复检查
+     * 首次检查并发执行，仍在使用的实例先通知移除，之后支持长轮询的实例用长轮询等待，
+     * 不支持的按指数退避加随机抖动重新检查，确认移除的实例不再检查。
+     * 单线程调度器负责计时和到期取消，检查本身在InstanceCheckExecutor中执行。
+     * 非UP状态的实例不会再调用当前服务，直接跳过；检查结果不在blockOn中的实例检查一次后即不再等待。
+     * 开启aggregate时每个服务只检查一个委托实例，委托实例无法完成时拆分为逐个实例检查
+     */
+    private class ShutdownAsyncTask {
+
+        final String handle;
+        final long startTime;
+        final int total;
+        final int skipped;
+        final long deadline;
+        /**
+         * 协同下线的实例组，单实例下线时为null
+         */
+        final ShutdownGroup group;
+        /**
+         * 尚未完成首次检查的实例数
+         */
+        final AtomicInteger firstPassPending = new AtomicInteger();
         boolean force; //是否强制停止
         int wait;
-        List<InstanceInfo> instances;
-        String paramStr;
-        ShutdownAsyncTask(List<InstanceInfo> instances, String paramStr, int wait, boolean force){
+        final ScheduledExecutorService timer;
+        final Map<PeerTarget, PeerCheck> remaining = new ConcurrentHashMap<>();
+        final AtomicBoolean finished = new AtomicBoolean();
+        /**
+         * 可用区 -> 确认进度，未开启zone-quorum时为空
+         */
+        final Map<String, ZoneProgress> zones = new HashMap<>();
+        volatile ScheduledFuture<?> deadlineFuture;
+        volatile String phase = "deregistered";
+        ShutdownAsyncTask(ShutdownPlan plan, ShutdownGroup group, int wait, boolean force){
+            this.startTime = System.currentTimeMillis();
+            this.handle = plan.getServerName() + "-" + Long.toHexString(this.startTime);
             this.force = force;
             this.wait = wait;
-            this.instances = instances;
-            this.paramStr = paramStr;
+            this.deadline = this.startTime + wait * 1000L;
+            this.group = group;
+            boolean aggregate = group == null && properties.getAggregate();
+            Map<String, List<PeerTarget>> peersByApp = new LinkedHashMap<>();
+            Map<String, Integer> zoneTotals = new HashMap<>();
+            int skipped = 0;
+            for(PeerTarget peer : plan.getPeers()){
+                InstanceInfo.InstanceStatus status = peer.getInstance().getStatus();
+                if(status != InstanceInfo.InstanceStatus.UP){
+                    logger.info("{} is {}, skip check", peer, status);
+                    skipped++;
+                    continue;
+                }
+                Integer zoneTotal = zoneTotals.get(zoneKey(peer));
+                zoneTotals.put(zoneKey(peer), zoneTotal == null ? 1 : zoneTotal + 1);
+                if(!aggregate){
+                    this.remaining.put(peer, new PeerCheck(peer, null));
+                    continue;
+                }
+                List<PeerTarget> appPeers = peersByApp.get(peer.getAppName());
+                if(appPeers == null){
+                    appPeers = new ArrayList<>();
+                    peersByApp.put(peer.getAppName(), appPeers);
+                }
+                appPeers.add(peer);
+            }
+            for(List<PeerTarget> appPeers : peersByApp.values()){
+                PeerTarget delegate = appPeers.get(0);
+                this.remaining.put(delegate, new PeerCheck(delegate, appPeers.size() > 1 ? appPeers : null));
+            }
+            this.total = this.remaining.size();
+            this.skipped = skipped;
+            this.firstPassPending.set(this.total);
+            //按实例计数，聚合检查的每个成员都计入各自的可用区
+            if(zoneAwareness != null && zoneAwareness.getQuorum() > 0){
+                for(Map.Entry<String, Integer> entry : zoneTotals.entrySet()){
+                    this.zones.put(entry.getKey(), new ZoneProgress(entry.getValue()));
+                }
+            }
+            CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("ShutdownAsyncThread-");
+            threadFactory.setDaemon(true);
+            this.timer = Executors.newSingleThreadScheduledExecutor(threadFactory);
         }
 
-        @Override
-        public void run() {
-            isShutdowning = true;
-            long start = System.currentTimeMillis();
-            while((System.currentTimeMillis() - start)/1000 < wait){
-                this.instances = checkInstanceRibbon(this.instances, this.paramStr);
-                if(this.instances.size() == 0){
-                    break;
+        void start(){
+            this.phase = "checking";
+            publishStatus("deregistered", this, null);
+            if(this.remaining.isEmpty()){
+                this.finishLater(true);
+                return;
+            }
+            this.deadlineFuture = this.timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onDeadline();
+                }
+            }, Math.max(0, this.deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            metrics.setRemainingPeers(this.remaining.size());
+            //同区实例先提交，跨区实例在单独的执行器中并行检查
+            List<PeerCheck> crossZone = new ArrayList<>();
+            for(PeerCheck check : this.remaining.values()){
+                if(zoneAwareness != null && !zoneAwareness.isLocal(check.peer)){
+                    crossZone.add(check);
                 }else{
-                    logger.warn("there are still some services use this service, shutdown thread will check after 5 seconds");
-                    try {
-                        Thread.currentThread().sleep(5000);
-                    } catch (InterruptedException e) {
-                        logger.error("ShutdownAsyncTask: ", e);
+                    check.submit();
+                }
+            }
+            for(PeerCheck check : crossZone){
+                check.submit();
+            }
+        }
+
+        long leftMillis(){
+            return this.deadline - System.currentTimeMillis();
+        }
+
+        int remainingCount(){
+            return this.remaining.size();
+        }
+
+        /**
+         * 仍在等待的实例，聚合检查展开为各成员，最多STATUS_WAITING_LIMIT个
+         */
+        List<Map<String, Object>> waitingPeers(){
+            List<Map<String, Object>> waiting = new ArrayList<>();
+            for(PeerCheck check : this.remaining.values()){
+                for(PeerTarget member : check.covered()){
+                    if(waiting.size() >= STATUS_WAITING_LIMIT){
+                        return waiting;
                     }
+                    Map<String, Object> peer = new LinkedHashMap<>();
+                    peer.put("peer", member.toString());
+                    CheckResult lastResult = member.getLastResult();
+                    if(lastResult != null){
+                        peer.put("lastResult", lastResult.name());
+                        peer.put("lastCheckTime", member.getLastCheckTime());
+                    }
+                    waiting.add(peer);
                 }
             }
-            if(this.instances.size() == 0){
-                logger.info("there are no service use this service now, application will be shutdown");
-                closeContext();
-            }else{
-                if(this.force){
-                    logger.warn("although there are still some services use this service, but force is set true, application will be forced shutdown");
-                    closeContext();
+            return waiting;
+        }
+
+        /**
+         * @param peer 检查的实例
+         * @param covered 本次确认的所有实例，聚合检查时为全部成员
+         */
+        void onConfirmed(PeerTarget peer, List<PeerTarget> covered){
+            if(this.remaining.remove(peer) == null){
+                return;
+            }
+            metrics.setRemainingPeers(this.remaining.size());
+            publishStatus("confirmed", this, peer);
+            this.checkQuorum(covered);
+            if(this.remaining.isEmpty()){
+                this.finishLater(true);
+            }
+        }
+
+        /**
+         * 可用区确认移除的实例达到zone-quorum时，不再等待只包含已达标可用区实例的检查；
+         * 只有返回ABSENT的实例计入，无法连接、未安装或不阻止下线的其他结果不能说明流量已离开
+         */
+        private void checkQuorum(List<PeerTarget> covered){
+            if(this.zones.isEmpty()){
+                return;
+            }
+            List<String> reached = new ArrayList<>();
+            for(PeerTarget member : covered){
+                if(member.getLastResult() != CheckResult.ABSENT){
+                    continue;
+                }
+                ZoneProgress progress = this.zones.get(zoneKey(member));
+                if(progress != null && progress.confirm(zoneAwareness.getQuorum())){
+                    reached.add(zoneKey(member));
+                }
+            }
+            if(reached.isEmpty()){
+                return;
+            }
+            int released = 0;
+            for(PeerCheck check : this.remaining.values()){
+                if(this.isReleased(check.covered()) && this.remaining.remove(check.peer) != null){
+                    check.cancel();
+                    released += check.covered().size();
+                }
+            }
+            logger.info("zone {} reached quorum {}%, no longer wait for {} instances", reached, zoneAwareness.getQuorum(), released);
+            if(released > 0){
+                metrics.setRemainingPeers(this.remaining.size());
+                publishStatus("quorum", this, null);
+            }
+        }
+
+        /**
+         * 实例所在的可用区是否都已达到zone-quorum
+         */
+        boolean isReleased(List<PeerTarget> peers){
+            if(this.zones.isEmpty()){
+                return false;
+            }
+            for(PeerTarget peer : peers){
+                ZoneProgress progress = this.zones.get(zoneKey(peer));
+                if(progress == null || !progress.reached.get()){
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 进入新阶段时发布进度，重复进入同一阶段不发布
+         */
+        void enter(String phase){
+            if(phase.equals(this.phase)){
+                return;
+            }
+            this.phase = phase;
+            publishStatus(phase, this, null);
+        }
+
+        /**
+         * 到达wait时间，取消所有等待中和执行中的检查
+         */
+        void onDeadline(){
+            if(this.finished.get()){
+                return;
+            }
+            logger.warn("after {} seconds, there are still {} instances use this service: {}", wait, this.remaining.size(), this.remaining.keySet());
+            for(PeerCheck check : this.remaining.values()){
+                check.cancel();
+            }
+            this.finish(false);
+        }
+
+        void finishLater(final boolean clean){
+            this.timer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    finish(clean);
+                }
+            });
+        }
+
+        void finish(boolean clean){
+            if(!this.finished.compareAndSet(false, true)){
+                return;
+            }
+            ScheduledFuture<?> deadlineFuture = this.deadlineFuture;
+            if(deadlineFuture != null){
+                deadlineFuture.cancel(false);
+            }
+            boolean timeout = false;
+            try{
+                if(clean){
+                    logger.info("there are no service use this service now, application will be shutdown");
+                    this.close(true);
                 }else{
-                    logger.warn("after {} seconds, there are still some services use this service, application cannot be shutdown automatically. please confirm, then manually close", wait);
+                    if(this.force){
+                        logger.warn("although there are still some services use this service, but force is set true, application will be forced shutdown");
+                        this.close(false);
+                    }else{
+                        logger.warn("after {} seconds, there are still some services use this service, application cannot be shutdown automatically. please confirm, then manually close", wait);
+                        metrics.recordShutdown(false, false, System.currentTimeMillis() - this.startTime);
+                        timeout = true;
+                        //释放下线名额，重试时重新排队
+                        if(rollingCoordinator != null){
+                            rollingCoordinator.release();
+                        }
+                    }
                 }
+            }catch(Exception e){
+                logger.error("ShutdownAsyncTask: ", e);
+            }finally{
+                isShutdowning = false;
+                this.timer.shutdown();
             }
-            isShutdowning = false;
+            if(timeout){
+                this.enter("timeout");
+            }
+        }
+
+        /**
+         * 先通知组内其他实例关闭，各自等待正在处理的请求完成，再关闭自身
+         */
+        private void close(boolean clean){
+            if(this.group != null){
+                callMembers(this.group, true);
+            }
+            this.drain();
+            this.enter("closing");
+            metrics.recordShutdown(clean, true, System.currentTimeMillis() - this.startTime);
+            closeContext();
+        }
+
+        /**
+         * 等待正在处理的请求、线程池等完成
+         */
+        private void drain(){
+            this.enter("draining");
+            drainInFlight();
         }
+
+        /**
+         * 单个实例的检查，同一时间只有一次检查在等待或执行
+         */
+        private class PeerCheck implements Runnable {
+
+            final PeerTarget peer;
+            /**
+             * 聚合检查时由peer检查的同服务实例(包括peer自身)，直接检查时为null
+             */
+            volatile List<PeerTarget> members;
+            int attempts;
+            int backoffs;
+            boolean evicted;
+            volatile Future<?> future;
+
+            PeerCheck(PeerTarget peer, List<PeerTarget> members){
+                this.peer = peer;
+                this.members = members == null ? null : new ArrayList<>(members);
+            }
+
+            void submit(){
+                if(!finished.get()){
+                    this.future = schedulerFor(this.peer).submit(this);
+                }
+            }
+
+            /**
+             * 本检查确认的实例，聚合检查时为全部成员
+             */
+            List<PeerTarget> covered(){
+                List<PeerTarget> members = this.members;
+                return members == null ? Collections.singletonList(this.peer) : members;
+            }
+
+            void schedule(long delayMillis){
+                this.future = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        submit();
+                    }
+                }, delayMillis, TimeUnit.MILLISECONDS);
+            }
+
+            void cancel(){
+                Future<?> future = this.future;
+                if(future != null){
+                    future.cancel(true);
+                }
+            }
+
+            @Override
+            public void run() {
+                if(finished.get()){
+                    return;
+                }
+                CheckResult result = this.check();
+                if(this.attempts == 1 && firstPassPending.decrementAndGet() == 0){
+                    metrics.recordFanOut(System.currentTimeMillis() - startTime);
+                }
+                if(finished.get()){
+                    return;
+                }
+                if(result == null){
+                    //委托实例无法完成聚合检查，改为逐个实例检查
+                    this.split(this.members);
+                    return;
+                }
+                if(!blockOn.contains(result)){
+                    if(result != CheckResult.ABSENT){
+                        logger.warn("{} return {}, no longer wait for it", this.peer, result);
+                    }
+                    onConfirmed(this.peer, this.covered());
+                    return;
+                }
+                //通知仍在使用的实例立即移除本实例，不等待对方eureka缓存和ribbon列表刷新
+                if(properties.getEvict() && !this.evicted && result == CheckResult.IN_USE){
+                    this.evicted = true;
+                    if(group != null){
+                        evictGroupRemote(this.peer, group);
+                    }else if(this.members != null){
+                        checkAggregateRemote(this.peer, true, this.timeoutMillis());
+                    }else{
+                        evictOneInstanceRemote(this.peer);
+                    }
+                }else if(properties.getRefresh() && !this.evicted && result == CheckResult.IN_USE){
+                    //不主动移除时请求对方立即刷新注册表，由对方按注册表移除本实例
+                    this.evicted = true;
+                    refreshOneInstanceRemote(this.peer);
+                }
+                enter("waiting");
+                this.schedule(this.nextDelay());
+            }
+
+            /**
+             * 每次检查从开始执行起计算超时时间，超时后中止请求，结果为IN_USE，下次再检查
+             */
+            private CheckResult check(){
+                this.attempts++;
+                final RequestHandle handle = new RequestHandle();
+                ScheduledFuture<?> abort;
+                try{
+                    abort = timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            handle.abort();
+                        }
+                    }, this.timeoutMillis(), TimeUnit.MILLISECONDS);
+                }catch(RejectedExecutionException e){
+                    //任务已结束，timer已关闭，结果不会再被使用
+                    return CheckResult.IN_USE;
+                }
+                RemoteCheckClient.bind(handle);
+                try{
+                    return this.doCheck();
+                }finally{
+                    RemoteCheckClient.unbind();
+                    abort.cancel(false);
+                    if(handle.isAborted()){
+                        logger.warn("{} check timeout after {} ms", this.peer, this.timeoutMillis());
+                    }
+                }
+            }
+
+            /**
+             * 单次检查的超时时间，跨区实例使用cross-zone-check-timeout，长轮询再加上等待时间
+             */
+            private long timeoutMillis(){
+                long timeout = zoneAwareness != null && !zoneAwareness.isLocal(this.peer)
+                        ? properties.getCrossZoneCheckTimeout() : properties.getCheckTimeout();
+                if(group == null && this.members == null && this.attempts > 1 && !this.peer.isLongPollUnsupported()){
+                    timeout += properties.getLongPollTimeout();
+                }
+                return timeout;
+            }
+
+            private CheckResult doCheck(){
+                if(group != null){
+                    return checkGroupRemote(this.peer, group);
+                }
+                if(this.members != null){
+                    return this.checkAggregate();
+                }
+                long left = leftMillis();
+                //首次检查和不支持长轮询的实例用普通检查
+                if(this.attempts == 1 || this.peer.isLongPollUnsupported() || left <= 0){
+                    return checkOneInstanceRemote(this.peer);
+                }
+                //支持长轮询的实例在对方移除当前实例时立即返回
+                CheckResult result = waitOneInstanceRemote(this.peer, Math.min(left, properties.getLongPollTimeout()));
+                if(result == CheckResult.NOT_INSTALLED){
+                    logger.info("{} does not support long poll", this.peer);
+                    this.peer.setLongPollUnsupported(true);
+                    return checkOneInstanceRemote(this.peer);
+                }
+                return result;
+            }
+
+            /**
+             * @return 所有实例中第一个会阻止下线的结果，都不阻止时为ABSENT，委托实例无法完成或结果中没有自身时为null
+             */
+            private CheckResult checkAggregate(){
+                AggregateCheckResult aggregate = checkAggregateRemote(this.peer, false, this.timeoutMillis());
+                if(aggregate.isFailed()){
+                    logger.info("{} cannot check {} instances: {}, check them one by one", this.peer, this.members.size(), aggregate.getFailure());
+                    return null;
+                }
+                Map<String, CheckResult> results = new HashMap<>(aggregate.getInstances().size() * 2);
+                for(Map.Entry<String, CheckResult> entry : aggregate.getInstances().entrySet()){
+                    results.put(entry.getKey().toLowerCase(), entry.getValue());
+                }
+                CheckResult blocking = CheckResult.ABSENT;
+                List<PeerTarget> missing = new ArrayList<>();
+                for(PeerTarget member : this.members){
+                    CheckResult result = results.get(member.getInstanceId().toLowerCase());
+                    if(result == null){
+                        missing.add(member);
+                        continue;
+                    }
+                    member.recordResult(result);
+                    if(blocking == CheckResult.ABSENT && blockOn.contains(result)){
+                        logger.info("{} return {}", member, result);
+                        blocking = result;
+                    }
+                }
+                //委托实例自身不在结果中时不能用聚合结果确认，由run()整体改为逐个实例检查
+                if(missing.contains(this.peer)){
+                    logger.info("{} does not report itself, check {} instances one by one", this.peer, this.members.size());
+                    return null;
+                }
+                //委托实例看不到的实例单独检查
+                if(!missing.isEmpty()){
+                    List<PeerTarget> members = new ArrayList<>(this.members);
+                    members.removeAll(missing);
+                    this.members = members;
+                    this.split(missing);
+                }
+                return blocking;
+            }
+
+            /**
+             * 为每个实例创建单独的检查，peer自身的检查会替换当前聚合检查；
+             * 全部放入remaining后再提交，避免先完成的检查看到remaining为空而提前关闭
+             */
+            private void split(List<PeerTarget> targets){
+                if(this.attempts == 1){
+                    firstPassPending.addAndGet(targets.size());
+                }
+                List<PeerCheck> checks = new ArrayList<>(targets.size());
+                for(PeerTarget target : targets){
+                    //所在区已达到zone-quorum的实例不再单独检查
+                    if(isReleased(Collections.singletonList(target))){
+                        if(this.attempts == 1){
+                            firstPassPending.decrementAndGet();
+                        }
+                        if(target.equals(this.peer)){
+                            remaining.remove(target, this);
+                        }
+                        continue;
+                    }
+                    PeerCheck check = new PeerCheck(target, null);
+                    remaining.put(target, check);
+                    checks.add(check);
+                }
+                metrics.setRemainingPeers(remaining.size());
+                if(remaining.isEmpty()){
+                    finishLater(true);
+                }
+                for(PeerCheck check : checks){
+                    check.submit();
+                }
+            }
+
+            /**
+             * 长轮询本身已经等待，只间隔初始时间；普通检查和批量检查按指数退避，加正负20%随机抖动避免同时请求
+             */
+            private long nextDelay(){
+                long initial = properties.getRecheckInitialInterval();
+                if(group == null && this.members == null && !this.peer.isLongPollUnsupported()){
+                    return initial;
+                }
+                long delay = initial << Math.min(this.backoffs++, 20);
+                delay = Math.min(delay, properties.getRecheckMaxInterval());
+                double jitter = 0.8 + ThreadLocalRandom.current().nextDouble() * 0.4;
+                return Math.min((long)(delay * jitter), Math.max(0, leftMillis()));
+            }
+        }
+    }
+
+    /**
+     * 并行等待所有DrainParticipant完成
+     */
+    private void drainInFlight(){
+        if(this.drainCoordinator.drain()){
+            logger.info("all in-flight work completed");
+        }
+    }
+
+    private static String zoneKey(PeerTarget peer){
+        return peer.getZone() == null ? ZoneAwareness.UNKNOWN_ZONE : peer.getZone().toLowerCase();
     }
-    
+
+    /**
+     * 单个可用区的确认进度
+     */
+    private static class ZoneProgress {
+
+        final int total;
+
+        final AtomicInteger confirmed = new AtomicInteger();
+
+        final AtomicBoolean reached = new AtomicBoolean();
+
+        ZoneProgress(int total){
+            this.total = total;
+        }
+
+        /**
+         * @return 是否本次确认使该区首次达到quorum
+         */
+        boolean confirm(int quorum){
+            int confirmed = this.confirmed.incrementAndGet();
+            return confirmed * 100 >= quorum * this.total && this.reached.compareAndSet(false, true);
+        }
+    }
+
     private void closeContext(){
         SpringApplication.exit(applicationContext, new ExitCodeGenerator() {
             @Override
@@ -226,5 +1362,5 @@ public class GracefulOffineHandler implements ApplicationContextAware{
             }
         });
     }
-    
+
 }
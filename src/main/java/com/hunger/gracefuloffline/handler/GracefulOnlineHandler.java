@@ -0,0 +1,241 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.client.CheckResult;
+import com.hunger.gracefuloffline.client.RemoteCheckClient;
+import com.hunger.gracefuloffline.properties.GracefulOfflineProperties;
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationListener;
+import org.springframework.core.env.Environment;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * 优雅上线：实例以STARTING状态注册，应用启动完成后在后台预热本服务接口，再改为UP，
+ * 然后反向使用check确认调用本服务的实例的ribbon已包含本实例，最后可选地通过元数据逐步提高权重
+ */
+public class GracefulOnlineHandler implements ApplicationListener<ApplicationReadyEvent> {
+
+    private static final Logger logger = LoggerFactory.getLogger(GracefulOnlineHandler.class);
+
+    /**
+     * 发布权重的eureka元数据key，取值10到100
+     */
+    public static final String WEIGHT_METADATA_KEY = "graceful-weight";
+
+    private static final int WEIGHT_STEP = 10;
+
+    private static final long CONFIRM_INTERVAL_MILLIS = 2000;
+
+    private EurekaClient discoveryClient;
+
+    private GracefulOffineHandler gracefulOffineHandler;
+
+    private RemoteCheckClient remoteCheckClient;
+
+    private InstanceCheckExecutor checkExecutor;
+
+    private GracefulOfflineProperties properties;
+
+    private Environment environment;
+
+    /**
+     * 提供server.context-path，非web应用时为null
+     */
+    private ServerProperties serverProperties;
+
+    public GracefulOnlineHandler(EurekaClient discoveryClient, GracefulOffineHandler gracefulOffineHandler, RemoteCheckClient remoteCheckClient,
+                                 InstanceCheckExecutor checkExecutor, GracefulOfflineProperties properties, Environment environment,
+                                 ServerProperties serverProperties){
+        this.discoveryClient = discoveryClient;
+        this.gracefulOffineHandler = gracefulOffineHandler;
+        this.remoteCheckClient = remoteCheckClient;
+        this.checkExecutor = checkExecutor;
+        this.properties = properties;
+        this.environment = environment;
+        this.serverProperties = serverProperties;
+    }
+
+    @Override
+    public void onApplicationEvent(ApplicationReadyEvent event) {
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("GracefulOnlineThread-");
+        threadFactory.setDaemon(true);
+        threadFactory.newThread(new Runnable() {
+            @Override
+            public void run() {
+                try{
+                    online();
+                }catch(Exception e){
+                    logger.error("graceful online error, mark instance UP", e);
+                    markUp();
+                }
+            }
+        }).start();
+    }
+
+    private void online(){
+        this.warmUp();
+        if(this.properties.getOnlineWeightRamp() > 0){
+            this.publishWeight(WEIGHT_STEP);
+        }
+        this.markUp();
+        if(this.gracefulOffineHandler.isShutdowning()){
+            return;
+        }
+        this.confirm();
+        if(this.properties.getOnlineWeightRamp() > 0){
+            this.rampWeight();
+        }
+    }
+
+    /**
+     * 循环请求预热路径，使类加载、JIT编译、连接池和缓存在接收流量前完成初始化
+     */
+    private void warmUp(){
+        List<String> paths = this.properties.obtainWarmupPaths();
+        String port = this.environment.getProperty("local.server.port");
+        if(paths.isEmpty() || port == null){
+            return;
+        }
+        String contextPath = this.serverProperties == null ? null : this.serverProperties.getContextPath();
+        if(contextPath == null){
+            contextPath = "";
+        }
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(1000);
+        requestFactory.setReadTimeout(this.properties.getOnlineWarmupRequestTimeout());
+        RestTemplate restTemplate = new RestTemplate(requestFactory);
+        long start = System.currentTimeMillis();
+        long deadline = start + this.properties.getOnlineWarmupTimeout();
+        int requests = 0;
+        int errors = 0;
+        for(int i = 0; i < this.properties.getOnlineWarmupIterations(); i++){
+            for(String path : paths){
+                if(System.currentTimeMillis() >= deadline){
+                    logger.warn("warm up timeout after {} requests", requests);
+                    return;
+                }
+                requests++;
+                try{
+                    restTemplate.getForEntity("http://localhost:" + port + contextPath + path, byte[].class);
+                }catch(Exception e){
+                    //预热只关心代码路径被执行，不关心结果
+                    errors++;
+                }
+            }
+        }
+        logger.info("warm up {} paths with {} requests ({} errors) in {} ms", paths.size(), requests, errors, System.currentTimeMillis() - start);
+    }
+
+    private void markUp(){
+        //上线过程中已开始下线，不再改为UP
+        if(this.gracefulOffineHandler.isShutdowning()){
+            return;
+        }
+        ApplicationInfoManager infoManager = this.discoveryClient.getApplicationInfoManager();
+        if(infoManager.getInfo().getStatus() != InstanceInfo.InstanceStatus.UP){
+            infoManager.setInstanceStatus(InstanceInfo.InstanceStatus.UP);
+            logger.info("instance marked UP");
+        }
+    }
+
+    /**
+     * 等待调用本服务的实例的ribbon包含本实例，check返回IN_USE即已包含；
+     * 无法连接、未安装本starter或没有本服务ribbon客户端(不是调用方)的实例不再等待
+     */
+    private void confirm(){
+        List<PeerTarget> pending = new ArrayList<>();
+        for(PeerTarget peer : this.gracefulOffineHandler.currentPeers()){
+            if(peer.getInstance().getStatus() == InstanceInfo.InstanceStatus.UP){
+                pending.add(peer);
+            }
+        }
+        int total = pending.size();
+        long start = System.currentTimeMillis();
+        long deadline = start + this.properties.getOnlineConfirmTimeout();
+        while(!pending.isEmpty() && System.currentTimeMillis() < deadline){
+            Map<PeerTarget, Callable<Boolean>> calls = new LinkedHashMap<>();
+            for(final PeerTarget peer : pending){
+                calls.put(peer, new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return confirmed(peer);
+                    }
+                });
+            }
+            Map<PeerTarget, Boolean> results = this.checkExecutor.invokeAll(calls, Boolean.FALSE);
+            for(Map.Entry<PeerTarget, Boolean> entry : results.entrySet()){
+                if(entry.getValue()){
+                    pending.remove(entry.getKey());
+                }
+            }
+            if(!pending.isEmpty() && !this.sleep(CONFIRM_INTERVAL_MILLIS)){
+                return;
+            }
+        }
+        if(pending.isEmpty()){
+            logger.info("{} peers confirmed after {} ms", total, System.currentTimeMillis() - start);
+        }else{
+            logger.warn("after {} ms, {} consumers still do not see this instance: {}", this.properties.getOnlineConfirmTimeout(), pending.size(), pending);
+        }
+    }
+
+    /**
+     * 对方ribbon返回ABSENT时再确认对方是否是调用方，旧版本不支持时仍按调用方等待
+     * @param peer
+     * @return 是否不再等待该实例
+     */
+    private boolean confirmed(PeerTarget peer){
+        CheckResult result = this.remoteCheckClient.check(peer.getCheckUri());
+        if(result != CheckResult.ABSENT){
+            logger.debug("{} return {}", peer, result);
+            return true;
+        }
+        if(Boolean.FALSE.equals(this.remoteCheckClient.checkClient(peer.getClientUrl()))){
+            logger.debug("{} has no ribbon client for this service", peer);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 按固定步长逐步提高元数据中的权重
+     */
+    private void rampWeight(){
+        long stepMillis = this.properties.getOnlineWeightRamp() / (100 / WEIGHT_STEP - 1);
+        for(int weight = WEIGHT_STEP * 2; weight <= 100; weight += WEIGHT_STEP){
+            if(!this.sleep(stepMillis)){
+                return;
+            }
+            this.publishWeight(weight);
+        }
+    }
+
+    private void publishWeight(int weight){
+        this.discoveryClient.getApplicationInfoManager().registerAppMetadata(Collections.singletonMap(WEIGHT_METADATA_KEY, String.valueOf(weight)));
+        logger.debug("publish weight {}", weight);
+    }
+
+    private boolean sleep(long millis){
+        try{
+            Thread.sleep(millis);
+            return true;
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
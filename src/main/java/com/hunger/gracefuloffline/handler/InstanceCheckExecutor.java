@@ -0,0 +1,177 @@
+package com.hunger.gracefuloffline.handler;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 并发检查其他服务实例的执行器
+ * 线程数即并发上限，每个调用从开始执行起计算自己的超时时间，结果按完成顺序收集
+ */
+public class InstanceCheckExecutor implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(InstanceCheckExecutor.class);
+
+    /**
+     * 排队中的调用还没有开始计时，收集结果时最多等待这么久再检查一次超时
+     */
+    private static final long POLL_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final long callTimeoutNanos;
+
+    public InstanceCheckExecutor(int concurrency, long callTimeoutMillis){
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("GracefulOfflineCheck-");
+        threadFactory.setDaemon(true);
+        this.executor = new ScheduledThreadPoolExecutor(Math.max(1, concurrency), threadFactory);
+        this.executor.setRemoveOnCancelPolicy(true);
+        this.callTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(callTimeoutMillis);
+    }
+
+    /**
+     * 并发执行所有调用，超时或异常的调用结果为timeoutValue
+     * @param calls
+     * @param timeoutValue
+     * @return key对应的调用结果，按完成顺序排列
+     */
+    public <K, V> Map<K, V> invokeAll(Map<K, ? extends Callable<V>> calls, V timeoutValue){
+        return this.invokeAll(calls, timeoutValue, TimeUnit.NANOSECONDS.toMillis(this.callTimeoutNanos));
+    }
+
+    /**
+     * 并发执行所有调用，使用指定的单个调用超时时间，
+     * 用于聚合检查按下线方给出的时间检查每个成员
+     * @param calls
+     * @param timeoutValue
+     * @param callTimeoutMillis
+     * @return key对应的调用结果，按完成顺序排列
+     */
+    public <K, V> Map<K, V> invokeAll(Map<K, ? extends Callable<V>> calls, V timeoutValue, long callTimeoutMillis){
+        long callTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(callTimeoutMillis);
+        Map<K, V> results = new LinkedHashMap<>(calls.size() * 2);
+        CompletionService<V> completionService = new ExecutorCompletionService<>(this.executor);
+        Map<Future<V>, DeadlineCall<K, V>> pending = new HashMap<>(calls.size() * 2);
+        for(Map.Entry<K, ? extends Callable<V>> entry : calls.entrySet()){
+            DeadlineCall<K, V> call = new DeadlineCall<>(entry.getKey(), entry.getValue());
+            pending.put(completionService.submit(call), call);
+        }
+        try{
+            while(!pending.isEmpty()){
+                long waitNanos = this.expireOverdue(pending, results, timeoutValue, callTimeoutNanos);
+                if(pending.isEmpty()){
+                    break;
+                }
+                Future<V> done = completionService.poll(waitNanos, TimeUnit.NANOSECONDS);
+                if(done == null){
+                    continue;
+                }
+                DeadlineCall<K, V> call = pending.remove(done);
+                //已经因超时被取消的调用
+                if(call == null){
+                    continue;
+                }
+                results.put(call.key, this.valueOf(done, call.key, timeoutValue));
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            for(Map.Entry<Future<V>, DeadlineCall<K, V>> entry : pending.entrySet()){
+                entry.getKey().cancel(true);
+                results.put(entry.getValue().key, timeoutValue);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 供定时检查使用的调度器，与并发检查共用同一组线程
+     * @return
+     */
+    public ScheduledExecutorService getScheduler(){
+        return this.executor;
+    }
+
+    /**
+     * 取消已超时的调用
+     * @return 下一次需要检查超时的等待时间
+     */
+    private <K, V> long expireOverdue(Map<Future<V>, DeadlineCall<K, V>> pending, Map<K, V> results, V timeoutValue, long callTimeoutNanos){
+        long now = System.nanoTime();
+        long waitNanos = POLL_INTERVAL_NANOS;
+        Iterator<Map.Entry<Future<V>, DeadlineCall<K, V>>> iterator = pending.entrySet().iterator();
+        while(iterator.hasNext()){
+            Map.Entry<Future<V>, DeadlineCall<K, V>> entry = iterator.next();
+            DeadlineCall<K, V> call = entry.getValue();
+            if(!call.started){
+                continue;
+            }
+            long left = callTimeoutNanos - (now - call.startNanos);
+            if(left <= 0){
+                entry.getKey().cancel(true);
+                results.put(call.key, timeoutValue);
+                iterator.remove();
+                logger.warn("{} check timeout after {} ms", call.key, TimeUnit.NANOSECONDS.toMillis(callTimeoutNanos));
+            }else if(left < waitNanos){
+                waitNanos = left;
+            }
+        }
+        return waitNanos;
+    }
+
+    private <K, V> V valueOf(Future<V> done, K key, V timeoutValue){
+        try{
+            return done.get();
+        }catch(CancellationException e){
+            return timeoutValue;
+        }catch(ExecutionException e){
+            logger.error("{} check error", key, e.getCause());
+            return timeoutValue;
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            return timeoutValue;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        this.executor.shutdownNow();
+    }
+
+    /**
+     * 记录开始执行时间的调用，排队时间不计入超时
+     */
+    private static class DeadlineCall<K, V> implements Callable<V> {
+
+        final K key;
+        final Callable<V> delegate;
+        volatile long startNanos;
+        volatile boolean started;
+
+        DeadlineCall(K key, Callable<V> delegate){
+            this.key = key;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public V call() throws Exception {
+            this.startNanos = System.nanoTime();
+            this.started = true;
+            return this.delegate.call();
+        }
+    }
+}
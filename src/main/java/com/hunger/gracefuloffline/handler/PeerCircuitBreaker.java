@@ -0,0 +1,75 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.client.CheckResult;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 按服务实例的熔断器：连续多次无法连接后，在一段时间内不再请求该实例，直接视为无法连接
+ * 熔断时间结束后放行一次请求，成功连接则恢复
+ */
+public class PeerCircuitBreaker {
+
+    private final int threshold;
+
+    private final long openMillis;
+
+    private final ConcurrentHashMap<String, State> states = new ConcurrentHashMap<>();
+
+    public PeerCircuitBreaker(int threshold, long openMillis){
+        this.threshold = threshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * 是否允许请求该实例
+     * @param instanceId
+     * @return
+     */
+    public boolean allowRequest(String instanceId){
+        State state = this.states.get(instanceId);
+        if(state == null){
+            return true;
+        }
+        synchronized (state){
+            if(state.failures < this.threshold){
+                return true;
+            }
+            long now = System.currentTimeMillis();
+            if(now >= state.openUntil){
+                //半开：放行一次，失败后重新熔断
+                state.openUntil = now + this.openMillis;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    public void record(String instanceId, CheckResult result){
+        if(result != CheckResult.UNREACHABLE){
+            this.states.remove(instanceId);
+            return;
+        }
+        State state = this.states.get(instanceId);
+        if(state == null){
+            state = new State();
+            State existing = this.states.putIfAbsent(instanceId, state);
+            if(existing != null){
+                state = existing;
+            }
+        }
+        synchronized (state){
+            state.failures++;
+            if(state.failures >= this.threshold){
+                state.openUntil = System.currentTimeMillis() + this.openMillis;
+            }
+        }
+    }
+
+    private static class State {
+
+        int failures;
+
+        long openUntil;
+    }
+}
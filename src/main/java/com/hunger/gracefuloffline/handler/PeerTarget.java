@@ -0,0 +1,183 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.client.CheckResult;
+import com.netflix.appinfo.InstanceInfo;
+
+import java.net.URI;
+
+/**
+ * 下线时需要检查的其他服务实例，检查地址在构建下线计划时预先计算
+ */
+public class PeerTarget {
+
+    private final InstanceInfo instance;
+
+    private final String appName;
+
+    /**
+     * 所在可用区，没有可用区信息时为null
+     */
+    private final String zone;
+
+    private final String endpointUrl;
+
+    private final String checkUrl;
+
+    /**
+     * 预先解析的check地址，检查时不再解析
+     */
+    private final URI checkUri;
+
+    /**
+     * 长轮询地址，末尾拼接等待时间
+     */
+    private final String waitUrl;
+
+    private final String evictUrl;
+
+    private final String aggregateUrl;
+
+    private final String refreshUrl;
+
+    private final String clientUrl;
+
+    /**
+     * 最近一次检查结果，未检查过为null
+     */
+    private volatile CheckResult lastResult;
+
+    private volatile long lastCheckTime;
+
+    private volatile boolean longPollUnsupported;
+
+    private volatile boolean batchUnsupported;
+
+    /**
+     * check请求精简响应的参数，对方返回单个字节1/0，旧版本忽略该参数仍返回json
+     */
+    public static final String LEAN_PARAM = "&lean=true";
+
+    PeerTarget(InstanceInfo instance, String appName, String endpointUrl, String paramStr, boolean lean){
+        this.instance = instance;
+        this.appName = appName;
+        this.zone = ZoneAwareness.zoneOf(instance);
+        this.endpointUrl = endpointUrl;
+        this.checkUrl = endpointUrl + "/check?" + paramStr + (lean ? LEAN_PARAM : "");
+        this.checkUri = URI.create(this.checkUrl);
+        this.waitUrl = endpointUrl + "/check/wait?" + paramStr + "&timeout=";
+        this.evictUrl = endpointUrl + "/evict?" + paramStr;
+        this.aggregateUrl = endpointUrl + "/check/aggregate?" + paramStr + "&timeout=";
+        this.refreshUrl = endpointUrl + "/refresh?" + paramStr;
+        this.clientUrl = endpointUrl + "/check/client?" + paramStr;
+    }
+
+    void recordResult(CheckResult result){
+        this.lastResult = result;
+        this.lastCheckTime = System.currentTimeMillis();
+    }
+
+    /**
+     * 实例信息更新后沿用之前的检查状态
+     * @param previous
+     */
+    void inherit(PeerTarget previous){
+        this.lastResult = previous.lastResult;
+        this.lastCheckTime = previous.lastCheckTime;
+        this.longPollUnsupported = previous.longPollUnsupported;
+        this.batchUnsupported = previous.batchUnsupported;
+    }
+
+    public InstanceInfo getInstance() {
+        return instance;
+    }
+
+    public String getInstanceId() {
+        return instance.getInstanceId();
+    }
+
+    public String getAppName() {
+        return appName;
+    }
+
+    public String getZone() {
+        return zone;
+    }
+
+    /**
+     * gracefuloffline端点地址，用于拼接批量检查等其他请求
+     * @return
+     */
+    public String getEndpointUrl() {
+        return endpointUrl;
+    }
+
+    public String getCheckUrl() {
+        return checkUrl;
+    }
+
+    public URI getCheckUri() {
+        return checkUri;
+    }
+
+    public String getWaitUrl(long timeout) {
+        return waitUrl + timeout;
+    }
+
+    public String getEvictUrl() {
+        return evictUrl;
+    }
+
+    /**
+     * 由该实例检查其所属服务所有实例的地址
+     * @param timeout 委托实例检查每个成员的超时时间
+     * @return
+     */
+    public String getAggregateUrl(long timeout) {
+        return aggregateUrl + timeout;
+    }
+
+    /**
+     * 请求该实例立即刷新注册表和ribbon列表的地址
+     * @return
+     */
+    public String getRefreshUrl() {
+        return refreshUrl;
+    }
+
+    /**
+     * 判断该实例是否有当前服务ribbon客户端的地址
+     * @return
+     */
+    public String getClientUrl() {
+        return clientUrl;
+    }
+
+    public CheckResult getLastResult() {
+        return lastResult;
+    }
+
+    public long getLastCheckTime() {
+        return lastCheckTime;
+    }
+
+    public boolean isLongPollUnsupported() {
+        return longPollUnsupported;
+    }
+
+    void setLongPollUnsupported(boolean longPollUnsupported) {
+        this.longPollUnsupported = longPollUnsupported;
+    }
+
+    public boolean isBatchUnsupported() {
+        return batchUnsupported;
+    }
+
+    void setBatchUnsupported(boolean batchUnsupported) {
+        this.batchUnsupported = batchUnsupported;
+    }
+
+    @Override
+    public String toString() {
+        return appName + " " + instance.getInstanceId();
+    }
+}
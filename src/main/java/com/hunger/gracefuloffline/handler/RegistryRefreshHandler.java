@@ -0,0 +1,130 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.netflix.discovery.DiscoveryClient;
+import com.netflix.discovery.EurekaClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.aop.framework.Advised;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.ReflectionUtils;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 作为消费者时，由下线的实例请求立即增量拉取注册表，再只刷新对应ribbon客户端的服务列表，
+ * 不等待eureka缓存和ribbon列表定时刷新。
+ * 一个间隔内的多次请求合并为一次：第一次请求安排刷新，刷新前到达的请求只追加ribbon客户端，
+ * 两次注册表拉取之间至少间隔minInterval
+ */
+public class RegistryRefreshHandler implements DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(RegistryRefreshHandler.class);
+
+    private final EurekaClient discoveryClient;
+
+    private final CheckInstanceInRibbonHandler checkInstanceInRibbonHandler;
+
+    private final long minInterval;
+
+    /**
+     * DiscoveryClient中拉取注册表的方法，只需反射一次，找不到时为null
+     */
+    private final Method refreshRegistry;
+
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * 等待刷新的ribbon客户端
+     */
+    private final Set<String> pending = new LinkedHashSet<>();
+
+    private ScheduledFuture<?> scheduled;
+
+    private long lastRefresh;
+
+    public RegistryRefreshHandler(EurekaClient discoveryClient, CheckInstanceInRibbonHandler checkInstanceInRibbonHandler, long minInterval){
+        this.discoveryClient = discoveryClient;
+        this.checkInstanceInRibbonHandler = checkInstanceInRibbonHandler;
+        this.minInterval = minInterval;
+        this.refreshRegistry = ReflectionUtils.findMethod(DiscoveryClient.class, "refreshRegistry");
+        if(this.refreshRegistry == null){
+            logger.warn("cannot find refreshRegistry method in {}, only ribbon server list will be refreshed", DiscoveryClient.class);
+        }else{
+            this.refreshRegistry.setAccessible(true);
+        }
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("GracefulOfflineRefresh-");
+        threadFactory.setDaemon(true);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+    }
+
+    /**
+     * 请求刷新注册表和指定ribbon客户端的服务列表
+     * @param serverName
+     * @return 距离刷新执行的时间，单位毫秒
+     */
+    public synchronized long request(String serverName){
+        this.pending.add(serverName);
+        if(this.scheduled != null){
+            return Math.max(0, this.scheduled.getDelay(TimeUnit.MILLISECONDS));
+        }
+        long delay = Math.max(0, this.lastRefresh + this.minInterval - System.currentTimeMillis());
+        this.scheduled = this.scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                refresh();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return delay;
+    }
+
+    private void refresh(){
+        List<String> serverNames;
+        synchronized(this){
+            serverNames = new ArrayList<>(this.pending);
+            this.pending.clear();
+            this.scheduled = null;
+            this.lastRefresh = System.currentTimeMillis();
+        }
+        long start = System.currentTimeMillis();
+        this.refreshRegistry();
+        int refreshed = 0;
+        for(String serverName : serverNames){
+            if(this.checkInstanceInRibbonHandler.refreshServerList(serverName)){
+                refreshed++;
+            }
+        }
+        logger.info("registry and {} of {} ribbon clients refreshed in {} ms", refreshed, serverNames.size(), System.currentTimeMillis() - start);
+    }
+
+    private void refreshRegistry(){
+        if(this.refreshRegistry == null){
+            return;
+        }
+        try{
+            Object target = this.discoveryClient;
+            //refresh scope下注入的是代理
+            if(target instanceof Advised){
+                target = ((Advised)target).getTargetSource().getTarget();
+            }
+            if(target instanceof DiscoveryClient){
+                ReflectionUtils.invokeMethod(this.refreshRegistry, target);
+            }
+        }catch(Exception e){
+            logger.warn("refresh eureka registry error: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void destroy() {
+        this.scheduler.shutdownNow();
+    }
+}
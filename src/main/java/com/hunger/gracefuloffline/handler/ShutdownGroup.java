@@ -0,0 +1,55 @@
+package com.hunger.gracefuloffline.handler;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 协同下线：同一服务的多个实例由一个实例统一检查
+ * 其他服务实例只需对整组实例回答一次批量检查，而不是每个下线实例各自检查一遍
+ */
+public class ShutdownGroup {
+
+    private final String serverName;
+
+    /**
+     * 组内所有实例的小写instanceId，包括协调者自身
+     */
+    private final List<String> instanceIds;
+
+    /**
+     * 除协调者外的其他组内实例
+     */
+    private final List<PeerTarget> members;
+
+    /**
+     * 批量检查的请求参数
+     */
+    private final String batchParams;
+
+    ShutdownGroup(String serverName, List<String> instanceIds, List<PeerTarget> members){
+        this.serverName = serverName;
+        this.instanceIds = Collections.unmodifiableList(instanceIds);
+        this.members = Collections.unmodifiableList(members);
+        StringBuilder params = new StringBuilder("serverName=").append(serverName);
+        for(String instanceId : instanceIds){
+            params.append("&instanceId=").append(instanceId);
+        }
+        this.batchParams = params.toString();
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public List<String> getInstanceIds() {
+        return instanceIds;
+    }
+
+    public List<PeerTarget> getMembers() {
+        return members;
+    }
+
+    public String getBatchParams() {
+        return batchParams;
+    }
+}
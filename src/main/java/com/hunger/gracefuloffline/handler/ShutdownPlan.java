@@ -0,0 +1,52 @@
+package com.hunger.gracefuloffline.handler;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 下线计划：当前服务实例信息和需要检查的其他服务实例
+ * 注册表刷新时在后台重新构建，下线时直接使用
+ */
+public class ShutdownPlan {
+
+    private final String serverName;
+
+    private final String instanceId;
+
+    private final String paramStr;
+
+    private final List<PeerTarget> peers;
+
+    ShutdownPlan(String serverName, String instanceId, String paramStr, List<PeerTarget> peers){
+        this.serverName = serverName;
+        this.instanceId = instanceId;
+        this.paramStr = paramStr;
+        this.peers = Collections.unmodifiableList(peers);
+    }
+
+    Map<String, PeerTarget> peersById(){
+        Map<String, PeerTarget> peersById = new HashMap<>(this.peers.size() * 2);
+        for(PeerTarget peer : this.peers){
+            peersById.put(peer.getInstanceId(), peer);
+        }
+        return peersById;
+    }
+
+    public String getServerName() {
+        return serverName;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    public String getParamStr() {
+        return paramStr;
+    }
+
+    public List<PeerTarget> getPeers() {
+        return peers;
+    }
+}
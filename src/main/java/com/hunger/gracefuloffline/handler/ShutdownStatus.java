@@ -0,0 +1,113 @@
+package com.hunger.gracefuloffline.handler;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 下线进度的不可变快照，每次状态变化生成一个新快照
+ * 查询和推送都读取同一个快照，不需要加锁
+ */
+public class ShutdownStatus {
+
+    /**
+     * 快照序号，越大越新
+     */
+    private final long sequence;
+
+    private final long time;
+
+    /**
+     * 引起本次变化的事件：deregistered、confirmed、quorum(可用区达到zone-quorum)、waiting、draining、closing、timeout
+     */
+    private final String event;
+
+    /**
+     * confirmed事件对应的实例
+     */
+    private final String peer;
+
+    private final boolean shutdowning;
+
+    private final String handle;
+
+    private final String phase;
+
+    private final long startTime;
+
+    private final int peers;
+
+    private final int remaining;
+
+    private final int skipped;
+
+    private final List<String> group;
+
+    ShutdownStatus(long sequence, String event, String peer, boolean shutdowning, String handle, String phase,
+                   long startTime, int peers, int remaining, int skipped, List<String> group){
+        this.sequence = sequence;
+        this.time = System.currentTimeMillis();
+        this.event = event;
+        this.peer = peer;
+        this.shutdowning = shutdowning;
+        this.handle = handle;
+        this.phase = phase;
+        this.startTime = startTime;
+        this.peers = peers;
+        this.remaining = remaining;
+        this.skipped = skipped;
+        this.group = group;
+    }
+
+    static ShutdownStatus idle(){
+        return new ShutdownStatus(0, null, null, false, null, null, 0, 0, 0, 0, null);
+    }
+
+    /**
+     * 是否为最后一个事件，之后不会再有变化
+     * @return
+     */
+    public boolean isTerminal(){
+        return "closing".equals(this.event) || "timeout".equals(this.event);
+    }
+
+    public Map<String, Object> toMap(){
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("shutdowning", this.shutdowning);
+        if(this.event != null){
+            status.put("sequence", this.sequence);
+            status.put("time", this.time);
+            status.put("event", this.event);
+            if(this.peer != null){
+                status.put("peer", this.peer);
+            }
+        }
+        if(this.handle != null){
+            status.put("handle", this.handle);
+            status.put("phase", this.phase);
+            status.put("startTime", this.startTime);
+            status.put("peers", this.peers);
+            status.put("remaining", this.remaining);
+            status.put("skipped", this.skipped);
+            if(this.group != null){
+                status.put("group", this.group);
+            }
+        }else if(this.phase != null){
+            status.put("phase", this.phase);
+        }
+        return Collections.unmodifiableMap(status);
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getEvent() {
+        return event;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+}
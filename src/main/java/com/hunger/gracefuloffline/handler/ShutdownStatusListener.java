@@ -0,0 +1,9 @@
+package com.hunger.gracefuloffline.handler;
+
+/**
+ * 下线进度变化的监听，在发生变化的线程中回调，不应阻塞
+ */
+public interface ShutdownStatusListener {
+
+    void onStatus(ShutdownStatus status);
+}
@@ -0,0 +1,101 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.client.RemoteCheckClient;
+import com.hunger.gracefuloffline.properties.GracefulOfflineProperties;
+import com.hunger.gracefuloffline.properties.HttpClientConfig;
+import com.netflix.appinfo.AmazonInfo;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClient;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+
+/**
+ * 按可用区区分检查：与当前实例同区的实例使用默认的执行器和客户端，
+ * 跨区实例使用单独的调度线程和客户端，有自己的并发数和超时时间，两者并行检查互不占用。
+ * 跨区的超时时间只由检查的截止时间和客户端的读超时控制
+ */
+public class ZoneAwareness implements DisposableBean {
+
+    /**
+     * 没有可用区信息的实例归入的区
+     */
+    public static final String UNKNOWN_ZONE = "unknown";
+
+    private final EurekaClient discoveryClient;
+
+    private final ScheduledThreadPoolExecutor crossZoneScheduler;
+
+    private final RemoteCheckClient crossZoneClient;
+
+    /**
+     * 一个区内确认移除的实例达到该百分比后，该区其余实例不再等待，不大于0时不启用
+     */
+    private final int quorum;
+
+    public ZoneAwareness(EurekaClient discoveryClient, GracefulOfflineProperties properties){
+        this.discoveryClient = discoveryClient;
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("GracefulOfflineCrossZoneCheck-");
+        threadFactory.setDaemon(true);
+        this.crossZoneScheduler = new ScheduledThreadPoolExecutor(Math.max(1, properties.getCrossZoneCheckConcurrency()), threadFactory);
+        this.crossZoneScheduler.setRemoveOnCancelPolicy(true);
+        this.crossZoneClient = new RemoteCheckClient(crossZoneConfig(properties.getHttpClient(), properties.getCrossZoneCheckTimeout()), properties.getLongPollTimeout());
+        this.quorum = properties.getZoneQuorum();
+    }
+
+    /**
+     * 实例所在的可用区，优先使用元数据中的zone，其次是AWS的availability-zone
+     * @param instance
+     * @return 没有可用区信息时返回null
+     */
+    public static String zoneOf(InstanceInfo instance){
+        Map<String, String> metadata = instance.getMetadata();
+        String zone = metadata == null ? null : metadata.get("zone");
+        if(zone == null && instance.getDataCenterInfo() instanceof AmazonInfo){
+            zone = ((AmazonInfo)instance.getDataCenterInfo()).get(AmazonInfo.MetaDataKey.availabilityZone);
+        }
+        return zone == null || zone.length() == 0 ? null : zone;
+    }
+
+    /**
+     * 实例是否与当前实例同区，任意一方没有可用区信息时视为同区
+     * @param peer
+     * @return
+     */
+    public boolean isLocal(PeerTarget peer){
+        String localZone = zoneOf(this.discoveryClient.getApplicationInfoManager().getInfo());
+        return localZone == null || peer.getZone() == null || localZone.equalsIgnoreCase(peer.getZone());
+    }
+
+    public ScheduledExecutorService getCrossZoneScheduler() {
+        return crossZoneScheduler;
+    }
+
+    public RemoteCheckClient getCrossZoneClient() {
+        return crossZoneClient;
+    }
+
+    public int getQuorum() {
+        return quorum;
+    }
+
+    private static HttpClientConfig crossZoneConfig(HttpClientConfig config, int readTimeout){
+        HttpClientConfig crossZone = new HttpClientConfig();
+        crossZone.setConnectTimeout(config.getConnectTimeout());
+        crossZone.setReadTimeout(readTimeout);
+        crossZone.setConnectionRequestTimeout(config.getConnectionRequestTimeout());
+        crossZone.setMaxTotal(config.getMaxTotal());
+        crossZone.setMaxPerRoute(config.getMaxPerRoute());
+        crossZone.setKeepAlive(config.getKeepAlive());
+        return crossZone;
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        this.crossZoneScheduler.shutdownNow();
+        this.crossZoneClient.destroy();
+    }
+}
@@ -0,0 +1,188 @@
+package com.hunger.gracefuloffline.metrics;
+
+import com.hunger.gracefuloffline.client.CheckResult;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 优雅下线各阶段的计数和耗时，通过actuator的metrics端点输出
+ * 作为下线方：首轮并发检查耗时、单个实例检查耗时(按服务区分)、长轮询耗时、仍在使用的实例数、从注册中心下线到关闭的总耗时、下线结果
+ * 作为被检查方：check请求的次数和耗时
+ */
+public class GracefulOfflineMetrics implements PublicMetrics {
+
+    private static final String PREFIX = "gracefuloffline.";
+
+    private final Timer consumerCheck = new Timer();
+
+    private final Timer consumerBatchCheck = new Timer();
+
+    private final Timer peerCheck = new Timer();
+
+    /**
+     * 小写服务名 -> 该服务实例的检查耗时，用于定位响应慢的服务
+     */
+    private final ConcurrentHashMap<String, Timer> peerCheckByApp = new ConcurrentHashMap<>();
+
+    /**
+     * 长轮询包含等待时间，与普通检查分开统计
+     */
+    private final Timer peerWait = new Timer();
+
+    private final Map<CheckResult, LongAdder> peerResults = new EnumMap<>(CheckResult.class);
+
+    private final Timer fanOut = new Timer();
+
+    private volatile long remainingPeers;
+
+    private volatile long lastShutdownTime;
+
+    private final LongAdder cleanShutdowns = new LongAdder();
+
+    private final LongAdder forcedShutdowns = new LongAdder();
+
+    private final LongAdder timeoutShutdowns = new LongAdder();
+
+    public GracefulOfflineMetrics(){
+        for(CheckResult result : CheckResult.values()){
+            this.peerResults.put(result, new LongAdder());
+        }
+    }
+
+    /**
+     * 作为被检查方处理一次check请求
+     * @param nanos
+     */
+    public void recordConsumerCheck(long nanos){
+        this.consumerCheck.record(nanos);
+    }
+
+    /**
+     * 作为被检查方处理一次批量check请求
+     * @param nanos
+     */
+    public void recordConsumerBatchCheck(long nanos){
+        this.consumerBatchCheck.record(nanos);
+    }
+
+    /**
+     * 检查一个其他服务实例，长轮询的等待时间不计入
+     * @param appName 小写服务名
+     * @param result
+     * @param nanos
+     */
+    public void recordPeerCheck(String appName, CheckResult result, long nanos){
+        this.peerCheck.record(nanos);
+        Timer timer = this.peerCheckByApp.get(appName);
+        if(timer == null){
+            timer = new Timer();
+            Timer existing = this.peerCheckByApp.putIfAbsent(appName, timer);
+            if(existing != null){
+                timer = existing;
+            }
+        }
+        timer.record(nanos);
+        this.peerResults.get(result).increment();
+    }
+
+    /**
+     * 长轮询等待一个其他服务实例移除当前实例
+     * @param result
+     * @param nanos 包含等待时间
+     */
+    public void recordPeerWait(CheckResult result, long nanos){
+        this.peerWait.record(nanos);
+        this.peerResults.get(result).increment();
+    }
+
+    /**
+     * 所有实例都完成首次检查
+     * @param millis 从注册中心下线起的耗时
+     */
+    public void recordFanOut(long millis){
+        this.fanOut.record(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    public void setRemainingPeers(long remainingPeers){
+        this.remainingPeers = remainingPeers;
+    }
+
+    /**
+     * 下线结束
+     * @param clean 是否所有实例都已确认
+     * @param closing 是否关闭应用
+     * @param millis 从注册中心下线起的耗时
+     */
+    public void recordShutdown(boolean clean, boolean closing, long millis){
+        this.lastShutdownTime = millis;
+        if(clean){
+            this.cleanShutdowns.increment();
+        }else if(closing){
+            this.forcedShutdowns.increment();
+        }else{
+            this.timeoutShutdowns.increment();
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        List<Metric<?>> metrics = new ArrayList<>();
+        this.consumerCheck.addTo(metrics, PREFIX + "check");
+        this.consumerBatchCheck.addTo(metrics, PREFIX + "check.batch");
+        this.peerCheck.addTo(metrics, PREFIX + "peer.check");
+        for(Map.Entry<String, Timer> entry : this.peerCheckByApp.entrySet()){
+            entry.getValue().addTo(metrics, PREFIX + "peer.check." + entry.getKey());
+        }
+        this.peerWait.addTo(metrics, PREFIX + "peer.wait");
+        for(Map.Entry<CheckResult, LongAdder> entry : this.peerResults.entrySet()){
+            metrics.add(new Metric<>(PREFIX + "peer.result." + entry.getKey().name().toLowerCase(), entry.getValue().sum()));
+        }
+        this.fanOut.addTo(metrics, PREFIX + "fanout");
+        metrics.add(new Metric<>(PREFIX + "peer.remaining", this.remainingPeers));
+        metrics.add(new Metric<>(PREFIX + "shutdown.time", this.lastShutdownTime));
+        metrics.add(new Metric<>(PREFIX + "shutdown.clean", this.cleanShutdowns.sum()));
+        metrics.add(new Metric<>(PREFIX + "shutdown.forced", this.forcedShutdowns.sum()));
+        metrics.add(new Metric<>(PREFIX + "shutdown.timeout", this.timeoutShutdowns.sum()));
+        return metrics;
+    }
+
+    /**
+     * 次数、总耗时和最大耗时，输出单位毫秒
+     */
+    private static class Timer {
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder totalNanos = new LongAdder();
+
+        private final AtomicLong maxNanos = new AtomicLong();
+
+        void record(long nanos){
+            this.count.increment();
+            this.totalNanos.add(nanos);
+            long max = this.maxNanos.get();
+            while(nanos > max && !this.maxNanos.compareAndSet(max, nanos)){
+                max = this.maxNanos.get();
+            }
+        }
+
+        void addTo(List<Metric<?>> metrics, String name){
+            long count = this.count.sum();
+            long totalMillis = TimeUnit.NANOSECONDS.toMillis(this.totalNanos.sum());
+            metrics.add(new Metric<>(name + ".count", count));
+            metrics.add(new Metric<>(name + ".totalTime", totalMillis));
+            metrics.add(new Metric<>(name + ".mean", count == 0 ? 0.0 : (double)totalMillis / count));
+            metrics.add(new Metric<>(name + ".max", TimeUnit.NANOSECONDS.toMillis(this.maxNanos.get())));
+        }
+    }
+}
@@ -1,7 +1,11 @@
 package com.hunger.gracefuloffline.properties;
 
+import com.hunger.gracefuloffline.client.CheckResult;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeSet;
 
@@ -20,6 +24,7 @@ public class GracefulOfflineProperties {
 
     /**
      * 需要忽略的服务，多个逗号分隔，大小写不敏感
+     * 开启consumerIndex时只对没有发布ribbon客户端元数据的实例生效
      */
     private String ignoreService;
 
@@ -31,6 +36,177 @@ public class GracefulOfflineProperties {
      */
     private Map<String, CustomPath> customPath;
 
+    /**
+     * 并发检查其他服务实例的线程数，默认16
+     */
+    private Integer checkConcurrency = 16;
+
+    /**
+     * 检查单个服务实例的超时时间，单位毫秒，默认5000
+     * 下线时每次检查单独计时，超时后中止请求并视为仍在使用；长轮询检查再加上long-poll-timeout
+     */
+    private Integer checkTimeout = 5000;
+
+    /**
+     * 仍在使用当前服务的实例，首次重新检查的间隔，单位毫秒，默认500
+     */
+    private Integer recheckInitialInterval = 500;
+
+    /**
+     * 不支持长轮询的实例按指数退避重新检查，最大间隔，单位毫秒，默认5000
+     */
+    private Integer recheckMaxInterval = 5000;
+
+    /**
+     * 长轮询检查的最长等待时间，单位毫秒，默认10000
+     * 作为调用方时是每次长轮询请求的等待时间，作为被检查方时是允许的最大等待时间
+     */
+    private Integer longPollTimeout = 10000;
+
+    /**
+     * 下线后是否主动通知其他服务实例将本实例从ribbon中移除，默认开启
+     * 对方本地注册表仍显示本实例UP时，只在对应的ribbon客户端中标记为不可用，不修改对方的注册表
+     */
+    private Boolean evict = true;
+
+    /**
+     * 是否在eureka元数据中发布本服务的ribbon客户端，并据此只检查调用当前服务的实例，默认关闭
+     * 元数据只在实例注册或续约时更新，本地注册表也有刷新延迟，运行中新增的ribbon客户端可能无法及时反映，
+     * 只有ribbon客户端在启动时全部确定的场景才建议开启
+     */
+    private Boolean consumerIndex = false;
+
+    /**
+     * 关闭应用前等待正在处理的请求完成的最长时间，单位毫秒，默认10000
+     */
+    private Integer drainTimeout = 10000;
+
+    /**
+     * 关闭应用前是否同时等待context中线程池(ThreadPoolTaskExecutor、ThreadPoolTaskScheduler、ThreadPoolExecutor)的任务完成，默认开启
+     */
+    private Boolean drainExecutors = true;
+
+    /**
+     * 关闭应用前是否同时等待hystrix线程池中的命令完成，默认开启，未引入hystrix时无效
+     */
+    private Boolean drainHystrix = true;
+
+    /**
+     * 检查其他服务实例使用的http连接池配置
+     */
+    private HttpClientConfig httpClient = new HttpClientConfig();
+
+    /**
+     * 哪些检查结果会阻止下线，多个逗号分隔，可选in_use、unreachable、not_installed，默认只有in_use
+     * 不在其中的实例检查一次后即不再等待
+     */
+    private String blockOn = "in_use";
+
+    /**
+     * 连续多少次无法连接后熔断，熔断期间不再请求该实例，默认2
+     */
+    private Integer breakerThreshold = 2;
+
+    /**
+     * 熔断持续时间，单位毫秒，默认30000
+     */
+    private Integer breakerOpenInterval = 30000;
+
+    /**
+     * 作为被检查方时check结果的缓存时间，单位毫秒，默认1000，不大于0时不缓存
+     */
+    private Integer checkCacheTtl = 1000;
+
+    /**
+     * 每个ribbon客户端最多缓存的check结果数，默认1024
+     */
+    private Integer checkCacheSize = 1024;
+
+    /**
+     * 是否对每个消费者服务只请求一个实例，由其检查同服务的其他实例，默认关闭
+     * 对方不支持或无法完成时改为逐个实例检查
+     */
+    private Boolean aggregate = false;
+
+    /**
+     * 是否开启优雅上线，默认关闭
+     * 开启后实例以STARTING状态注册，预热完成后才改为UP，并确认消费者的ribbon已包含本实例
+     */
+    private Boolean online = false;
+
+    /**
+     * 预热时请求的本服务接口路径，多个逗号分隔，不包含context-path
+     */
+    private String onlineWarmupPaths;
+
+    /**
+     * 每个预热路径的请求次数，默认100
+     */
+    private Integer onlineWarmupIterations = 100;
+
+    /**
+     * 预热最长时间，单位毫秒，默认30000
+     */
+    private Integer onlineWarmupTimeout = 30000;
+
+    /**
+     * 预热时单个请求的读超时时间，单位毫秒，默认10000
+     */
+    private Integer onlineWarmupRequestTimeout = 10000;
+
+    /**
+     * 改为UP后等待消费者ribbon包含本实例的最长时间，单位毫秒，默认120000
+     */
+    private Integer onlineConfirmTimeout = 120000;
+
+    /**
+     * 确认后通过eureka元数据将权重从10逐步提高到100的时间，单位毫秒，默认0不发布权重
+     * 元数据随实例信息定时同步，间隔小于eureka.client.instance-info-replication-interval-seconds的变化会被合并
+     */
+    private Integer onlineWeightRamp = 0;
+
+    /**
+     * 同一服务同时下线的实例数上限，数量如2或百分比如25%，默认不限制
+     * 设置后超出上限的实例在eureka元数据中排队，前面的实例关闭后依次下线
+     */
+    private String rollingMaxDraining;
+
+    /**
+     * 不主动移除(evict=false)时，是否请求仍在使用的实例立即刷新eureka注册表和ribbon列表，默认开启
+     */
+    private Boolean refresh = true;
+
+    /**
+     * 作为消费者时两次注册表刷新的最小间隔，单位毫秒，默认5000，间隔内的请求合并为一次
+     */
+    private Integer refreshInterval = 5000;
+
+    /**
+     * check请求是否使用精简响应(单个字节1/0)，默认开启，对方为旧版本时仍返回json，两种格式都能识别
+     */
+    private Boolean leanCheck = true;
+
+    /**
+     * 是否按可用区区分检查，默认关闭
+     * 开启后同区实例使用check-concurrency和http-client.read-timeout，跨区实例使用下面的配置，两者并行检查
+     */
+    private Boolean zoneAware = false;
+
+    /**
+     * 跨区实例的最大并发检查数，默认8
+     */
+    private Integer crossZoneCheckConcurrency = 8;
+
+    /**
+     * 跨区实例单次检查的超时时间，单位毫秒，默认10000
+     */
+    private Integer crossZoneCheckTimeout = 10000;
+
+    /**
+     * 一个区内确认移除的实例达到该百分比后，该区其余实例不再等待，默认0不启用
+     */
+    private Integer zoneQuorum = 0;
+
 
     public Integer getWait() {
         return wait;
@@ -64,6 +240,262 @@ public class GracefulOfflineProperties {
         this.customPath = customPath;
     }
     
+    public Integer getCheckConcurrency() {
+        return checkConcurrency;
+    }
+
+    public void setCheckConcurrency(Integer checkConcurrency) {
+        this.checkConcurrency = checkConcurrency;
+    }
+
+    public Integer getCheckTimeout() {
+        return checkTimeout;
+    }
+
+    public void setCheckTimeout(Integer checkTimeout) {
+        this.checkTimeout = checkTimeout;
+    }
+
+    public Integer getRecheckInitialInterval() {
+        return recheckInitialInterval;
+    }
+
+    public void setRecheckInitialInterval(Integer recheckInitialInterval) {
+        this.recheckInitialInterval = recheckInitialInterval;
+    }
+
+    public Integer getRecheckMaxInterval() {
+        return recheckMaxInterval;
+    }
+
+    public void setRecheckMaxInterval(Integer recheckMaxInterval) {
+        this.recheckMaxInterval = recheckMaxInterval;
+    }
+
+    public Integer getLongPollTimeout() {
+        return longPollTimeout;
+    }
+
+    public void setLongPollTimeout(Integer longPollTimeout) {
+        this.longPollTimeout = longPollTimeout;
+    }
+
+    public Boolean getEvict() {
+        return evict;
+    }
+
+    public void setEvict(Boolean evict) {
+        this.evict = evict;
+    }
+
+    public Boolean getConsumerIndex() {
+        return consumerIndex;
+    }
+
+    public void setConsumerIndex(Boolean consumerIndex) {
+        this.consumerIndex = consumerIndex;
+    }
+
+    public Integer getDrainTimeout() {
+        return drainTimeout;
+    }
+
+    public void setDrainTimeout(Integer drainTimeout) {
+        this.drainTimeout = drainTimeout;
+    }
+
+    public Boolean getDrainExecutors() {
+        return drainExecutors;
+    }
+
+    public void setDrainExecutors(Boolean drainExecutors) {
+        this.drainExecutors = drainExecutors;
+    }
+
+    public Boolean getDrainHystrix() {
+        return drainHystrix;
+    }
+
+    public void setDrainHystrix(Boolean drainHystrix) {
+        this.drainHystrix = drainHystrix;
+    }
+
+    public HttpClientConfig getHttpClient() {
+        return httpClient;
+    }
+
+    public void setHttpClient(HttpClientConfig httpClient) {
+        this.httpClient = httpClient;
+    }
+
+    public String getBlockOn() {
+        return blockOn;
+    }
+
+    public void setBlockOn(String blockOn) {
+        this.blockOn = blockOn;
+    }
+
+    public Integer getBreakerThreshold() {
+        return breakerThreshold;
+    }
+
+    public void setBreakerThreshold(Integer breakerThreshold) {
+        this.breakerThreshold = breakerThreshold;
+    }
+
+    public Integer getBreakerOpenInterval() {
+        return breakerOpenInterval;
+    }
+
+    public void setBreakerOpenInterval(Integer breakerOpenInterval) {
+        this.breakerOpenInterval = breakerOpenInterval;
+    }
+
+    public Integer getCheckCacheTtl() {
+        return checkCacheTtl;
+    }
+
+    public void setCheckCacheTtl(Integer checkCacheTtl) {
+        this.checkCacheTtl = checkCacheTtl;
+    }
+
+    public Integer getCheckCacheSize() {
+        return checkCacheSize;
+    }
+
+    public void setCheckCacheSize(Integer checkCacheSize) {
+        this.checkCacheSize = checkCacheSize;
+    }
+
+    public Boolean getAggregate() {
+        return aggregate;
+    }
+
+    public void setAggregate(Boolean aggregate) {
+        this.aggregate = aggregate;
+    }
+
+    public Boolean getOnline() {
+        return online;
+    }
+
+    public void setOnline(Boolean online) {
+        this.online = online;
+    }
+
+    public String getOnlineWarmupPaths() {
+        return onlineWarmupPaths;
+    }
+
+    public void setOnlineWarmupPaths(String onlineWarmupPaths) {
+        this.onlineWarmupPaths = onlineWarmupPaths;
+    }
+
+    public Integer getOnlineWarmupIterations() {
+        return onlineWarmupIterations;
+    }
+
+    public void setOnlineWarmupIterations(Integer onlineWarmupIterations) {
+        this.onlineWarmupIterations = onlineWarmupIterations;
+    }
+
+    public Integer getOnlineWarmupTimeout() {
+        return onlineWarmupTimeout;
+    }
+
+    public void setOnlineWarmupTimeout(Integer onlineWarmupTimeout) {
+        this.onlineWarmupTimeout = onlineWarmupTimeout;
+    }
+
+    public Integer getOnlineWarmupRequestTimeout() {
+        return onlineWarmupRequestTimeout;
+    }
+
+    public void setOnlineWarmupRequestTimeout(Integer onlineWarmupRequestTimeout) {
+        this.onlineWarmupRequestTimeout = onlineWarmupRequestTimeout;
+    }
+
+    public Integer getOnlineConfirmTimeout() {
+        return onlineConfirmTimeout;
+    }
+
+    public void setOnlineConfirmTimeout(Integer onlineConfirmTimeout) {
+        this.onlineConfirmTimeout = onlineConfirmTimeout;
+    }
+
+    public Integer getOnlineWeightRamp() {
+        return onlineWeightRamp;
+    }
+
+    public void setOnlineWeightRamp(Integer onlineWeightRamp) {
+        this.onlineWeightRamp = onlineWeightRamp;
+    }
+
+    public String getRollingMaxDraining() {
+        return rollingMaxDraining;
+    }
+
+    public void setRollingMaxDraining(String rollingMaxDraining) {
+        this.rollingMaxDraining = rollingMaxDraining;
+    }
+
+    public Boolean getRefresh() {
+        return refresh;
+    }
+
+    public void setRefresh(Boolean refresh) {
+        this.refresh = refresh;
+    }
+
+    public Integer getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    public void setRefreshInterval(Integer refreshInterval) {
+        this.refreshInterval = refreshInterval;
+    }
+
+    public Boolean getLeanCheck() {
+        return leanCheck;
+    }
+
+    public void setLeanCheck(Boolean leanCheck) {
+        this.leanCheck = leanCheck;
+    }
+
+    public Boolean getZoneAware() {
+        return zoneAware;
+    }
+
+    public void setZoneAware(Boolean zoneAware) {
+        this.zoneAware = zoneAware;
+    }
+
+    public Integer getCrossZoneCheckConcurrency() {
+        return crossZoneCheckConcurrency;
+    }
+
+    public void setCrossZoneCheckConcurrency(Integer crossZoneCheckConcurrency) {
+        this.crossZoneCheckConcurrency = crossZoneCheckConcurrency;
+    }
+
+    public Integer getCrossZoneCheckTimeout() {
+        return crossZoneCheckTimeout;
+    }
+
+    public void setCrossZoneCheckTimeout(Integer crossZoneCheckTimeout) {
+        this.crossZoneCheckTimeout = crossZoneCheckTimeout;
+    }
+
+    public Integer getZoneQuorum() {
+        return zoneQuorum;
+    }
+
+    public void setZoneQuorum(Integer zoneQuorum) {
+        this.zoneQuorum = zoneQuorum;
+    }
+
     public TreeSet<String> ontainIgnoreServices(){
         TreeSet<String> services = new TreeSet<>();
         if(this.ignoreService != null && this.ignoreService.length() > 0){
@@ -76,6 +508,46 @@ public class GracefulOfflineProperties {
         return services;
     }
     
+    /**
+     * 会阻止下线的检查结果，ABSENT总是不阻止
+     * @return
+     * @throws IllegalArgumentException 包含无法识别的结果
+     */
+    public EnumSet<CheckResult> obtainBlockResults(){
+        EnumSet<CheckResult> results = EnumSet.noneOf(CheckResult.class);
+        if(this.blockOn != null && this.blockOn.length() > 0){
+            for(String s : this.blockOn.split(",")){
+                String name = s.trim().replace('-', '_').toUpperCase();
+                if(name.length() > 0){
+                    try{
+                        results.add(CheckResult.valueOf(name));
+                    }catch(IllegalArgumentException e){
+                        throw new IllegalArgumentException("unknown block-on result: " + s.trim());
+                    }
+                }
+            }
+        }
+        results.remove(CheckResult.ABSENT);
+        return results;
+    }
+
+    /**
+     * 预热路径，保证以/开头
+     * @return
+     */
+    public List<String> obtainWarmupPaths(){
+        List<String> paths = new ArrayList<>();
+        if(this.onlineWarmupPaths != null){
+            for(String s : this.onlineWarmupPaths.split(",")){
+                String path = s.trim();
+                if(path.length() > 0){
+                    paths.add(path.startsWith("/") ? path : "/" + path);
+                }
+            }
+        }
+        return paths;
+    }
+
     public CustomPath getAppCustomPath(String appName){
         if(this.customPath == null || !this.customPath.containsKey(appName)){
             return null;
@@ -0,0 +1,82 @@
+package com.hunger.gracefuloffline.properties;
+
+public class HttpClientConfig {
+
+    /**
+     * 建立连接超时时间，单位毫秒
+     */
+    private Integer connectTimeout = 1000;
+
+    /**
+     * 读取响应超时时间，单位毫秒
+     */
+    private Integer readTimeout = 3000;
+
+    /**
+     * 从连接池获取连接的超时时间，单位毫秒
+     */
+    private Integer connectionRequestTimeout = 1000;
+
+    /**
+     * 连接池最大连接数
+     */
+    private Integer maxTotal = 200;
+
+    /**
+     * 每个服务实例(ip:port)的最大连接数
+     */
+    private Integer maxPerRoute = 4;
+
+    /**
+     * 对方未返回Keep-Alive时连接保持的时间，单位毫秒
+     */
+    private Integer keepAlive = 60000;
+
+    public Integer getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public void setConnectTimeout(Integer connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public Integer getReadTimeout() {
+        return readTimeout;
+    }
+
+    public void setReadTimeout(Integer readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public Integer getConnectionRequestTimeout() {
+        return connectionRequestTimeout;
+    }
+
+    public void setConnectionRequestTimeout(Integer connectionRequestTimeout) {
+        this.connectionRequestTimeout = connectionRequestTimeout;
+    }
+
+    public Integer getMaxTotal() {
+        return maxTotal;
+    }
+
+    public void setMaxTotal(Integer maxTotal) {
+        this.maxTotal = maxTotal;
+    }
+
+    public Integer getMaxPerRoute() {
+        return maxPerRoute;
+    }
+
+    public void setMaxPerRoute(Integer maxPerRoute) {
+        this.maxPerRoute = maxPerRoute;
+    }
+
+    public Integer getKeepAlive() {
+        return keepAlive;
+    }
+
+    public void setKeepAlive(Integer keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+}
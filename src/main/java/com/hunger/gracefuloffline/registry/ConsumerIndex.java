@@ -0,0 +1,190 @@
+package com.hunger.gracefuloffline.registry;
+
+import com.hunger.gracefuloffline.ribbon.RibbonClientPublisher;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.CacheRefreshedEvent;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.EurekaEvent;
+import com.netflix.discovery.EurekaEventListener;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.util.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 服务 -> 调用该服务的实例 的倒排索引
+ * 由各实例发布在eureka元数据中的ribbon客户端名称构建，每次注册表刷新后只重新解析发生变化的实例
+ */
+public class ConsumerIndex implements EurekaEventListener, DisposableBean {
+
+    private static final Logger logger = LoggerFactory.getLogger(ConsumerIndex.class);
+
+    private final EurekaClient discoveryClient;
+
+    /**
+     * instanceId -> 实例及其调用的服务
+     */
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /**
+     * 小写服务名 -> 调用该服务的实例
+     */
+    private final ConcurrentHashMap<String, Set<InstanceInfo>> consumers = new ConcurrentHashMap<>();
+
+    /**
+     * 没有发布ribbon客户端元数据的实例(未引入本starter或旧版本)，无法判断是否调用
+     */
+    private final Set<InstanceInfo> unknown = Collections.newSetFromMap(new ConcurrentHashMap<InstanceInfo, Boolean>());
+
+    public ConsumerIndex(EurekaClient discoveryClient){
+        this.discoveryClient = discoveryClient;
+        this.discoveryClient.registerEventListener(this);
+        this.refresh();
+    }
+
+    @Override
+    public void onEvent(EurekaEvent event) {
+        if(event instanceof CacheRefreshedEvent){
+            this.refresh();
+        }
+    }
+
+    /**
+     * 根据本地注册表更新索引，未变化的实例(同一个InstanceInfo对象)不重新解析
+     */
+    public synchronized void refresh(){
+        Applications apps = this.discoveryClient.getApplications();
+        if(apps == null){
+            return;
+        }
+        Set<String> seen = new HashSet<>(this.entries.size() * 2);
+        int changed = 0;
+        for(Application app : apps.getRegisteredApplications()){
+            for(InstanceInfo instance : app.getInstances()){
+                String instanceId = instance.getInstanceId();
+                seen.add(instanceId);
+                Entry entry = this.entries.get(instanceId);
+                if(entry != null && entry.instance == instance){
+                    continue;
+                }
+                if(entry != null){
+                    this.unindex(entry);
+                }
+                entry = new Entry(instance, parseClients(instance));
+                this.entries.put(instanceId, entry);
+                this.index(entry);
+                changed++;
+            }
+        }
+        Iterator<Map.Entry<String, Entry>> iterator = this.entries.entrySet().iterator();
+        while(iterator.hasNext()){
+            Map.Entry<String, Entry> entry = iterator.next();
+            if(!seen.contains(entry.getKey())){
+                this.unindex(entry.getValue());
+                iterator.remove();
+                changed++;
+            }
+        }
+        if(changed > 0){
+            logger.debug("consumer index refreshed, {} instances changed", changed);
+        }
+    }
+
+    /**
+     * 调用指定服务的实例
+     * @param serverName
+     * @return
+     */
+    public List<InstanceInfo> consumersOf(String serverName){
+        Set<InstanceInfo> instances = this.consumers.get(serverName.toLowerCase(Locale.ROOT));
+        return instances == null ? new ArrayList<InstanceInfo>() : new ArrayList<>(instances);
+    }
+
+    /**
+     * 无法判断是否调用其他服务的实例
+     * @return
+     */
+    public List<InstanceInfo> unknownConsumers(){
+        return new ArrayList<>(this.unknown);
+    }
+
+    private void index(Entry entry){
+        if(entry.clients == null){
+            this.unknown.add(entry.instance);
+            return;
+        }
+        for(String client : entry.clients){
+            Set<InstanceInfo> instances = this.consumers.get(client);
+            if(instances == null){
+                instances = Collections.newSetFromMap(new ConcurrentHashMap<InstanceInfo, Boolean>());
+                this.consumers.put(client, instances);
+            }
+            instances.add(entry.instance);
+        }
+    }
+
+    private void unindex(Entry entry){
+        if(entry.clients == null){
+            this.unknown.remove(entry.instance);
+            return;
+        }
+        for(String client : entry.clients){
+            Set<InstanceInfo> instances = this.consumers.get(client);
+            if(instances != null){
+                instances.remove(entry.instance);
+                if(instances.isEmpty()){
+                    this.consumers.remove(client);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return 没有元数据时返回null
+     */
+    private static Set<String> parseClients(InstanceInfo instance){
+        Map<String, String> metadata = instance.getMetadata();
+        String value = metadata == null ? null : metadata.get(RibbonClientPublisher.METADATA_KEY);
+        if(value == null){
+            return null;
+        }
+        Set<String> clients = new HashSet<>();
+        for(String client : StringUtils.commaDelimitedListToSet(value)){
+            String trimmed = client.trim();
+            if(trimmed.length() > 0){
+                clients.add(trimmed.toLowerCase(Locale.ROOT));
+            }
+        }
+        return clients;
+    }
+
+    @Override
+    public void destroy() {
+        this.discoveryClient.unregisterEventListener(this);
+    }
+
+    private static class Entry {
+
+        final InstanceInfo instance;
+
+        final Set<String> clients;
+
+        Entry(InstanceInfo instance, Set<String> clients){
+            this.instance = instance;
+            this.clients = clients;
+        }
+    }
+}
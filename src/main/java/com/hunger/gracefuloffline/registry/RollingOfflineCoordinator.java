@@ -0,0 +1,260 @@
+package com.hunger.gracefuloffline.registry;
+
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.CacheRefreshedEvent;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.EurekaClientConfig;
+import com.netflix.discovery.EurekaEvent;
+import com.netflix.discovery.EurekaEventListener;
+import com.netflix.discovery.shared.Application;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 同一服务的多个实例同时下线时限制同时下线的实例数，以eureka元数据作为共享状态，不依赖外部锁服务
+ * 排队的实例在元数据中发布queued:时间戳，按(时间戳, instanceId)排序；
+ * 获得名额的实例发布draining:时间戳并改为OUT_OF_SERVICE，保持注册直到应用关闭时注销，注销即释放名额。
+ * 每次注册表刷新后立即重新判断。元数据通过注册表同步，只能尽量避免超出上限
+ */
+public class RollingOfflineCoordinator implements EurekaEventListener {
+
+    private static final Logger logger = LoggerFactory.getLogger(RollingOfflineCoordinator.class);
+
+    public static final String METADATA_KEY = "graceful-offline";
+
+    private static final String QUEUED = "queued:";
+
+    private static final String DRAINING = "draining:";
+
+    private static final String IDLE = "idle";
+
+    private static final long EVALUATE_INTERVAL_MILLIS = 1000;
+
+    private final EurekaClient discoveryClient;
+
+    /**
+     * 同时下线的实例数上限，百分比时为0
+     */
+    private final int maxCount;
+
+    /**
+     * 同时下线的实例占比上限，数量时为0
+     */
+    private final int maxPercent;
+
+    /**
+     * 超过这么久的draining状态视为残留，不再占用名额
+     */
+    private final long staleMillis;
+
+    private ScheduledExecutorService scheduler;
+
+    private final Runnable evaluateTask = new Runnable() {
+        @Override
+        public void run() {
+            try{
+                evaluate();
+            }catch(Exception e){
+                logger.warn("rolling offline evaluate error: {}", e.getMessage());
+            }
+        }
+    };
+
+    private Runnable onAcquired;
+
+    private long queuedAt;
+
+    private boolean acquired;
+
+    /**
+     * @param discoveryClient
+     * @param maxDraining 数量如2，或百分比如25%
+     * @param staleMillis
+     */
+    public RollingOfflineCoordinator(EurekaClient discoveryClient, String maxDraining, long staleMillis){
+        this.discoveryClient = discoveryClient;
+        String value = maxDraining.trim();
+        if(value.endsWith("%")){
+            this.maxPercent = Integer.parseInt(value.substring(0, value.length() - 1).trim());
+            this.maxCount = 0;
+        }else{
+            this.maxCount = Integer.parseInt(value);
+            this.maxPercent = 0;
+        }
+        if(this.maxCount <= 0 && this.maxPercent <= 0){
+            throw new IllegalArgumentException("rolling-max-draining must be positive: " + maxDraining);
+        }
+        this.staleMillis = staleMillis;
+    }
+
+    /**
+     * 排队等待下线名额，获得后在协调线程中执行onAcquired
+     * @param onAcquired
+     */
+    public synchronized void enqueue(Runnable onAcquired){
+        if(this.scheduler != null){
+            return;
+        }
+        this.onAcquired = onAcquired;
+        this.queuedAt = System.currentTimeMillis();
+        this.publish(QUEUED + this.queuedAt);
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("RollingOfflineThread-");
+        threadFactory.setDaemon(true);
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(threadFactory);
+        this.scheduler.scheduleWithFixedDelay(this.evaluateTask, 0, EVALUATE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        this.discoveryClient.registerEventListener(this);
+        logger.info("queued for rolling offline, max draining: {}", this.maxCount > 0 ? this.maxCount : this.maxPercent + "%");
+    }
+
+    @Override
+    public void onEvent(EurekaEvent event) {
+        ScheduledExecutorService scheduler = this.scheduler;
+        if(event instanceof CacheRefreshedEvent && scheduler != null){
+            scheduler.execute(this.evaluateTask);
+        }
+    }
+
+    /**
+     * 当前实例在注册表中可见后，排在前面的实例数加正在下线的实例数小于上限时获得名额；
+     * 超过两轮同步时间仍不可见时不再等待可见
+     */
+    private void evaluate(){
+        Runnable acquiredTask;
+        synchronized(this){
+            if(this.acquired || this.scheduler == null){
+                return;
+            }
+            InstanceInfo self = this.discoveryClient.getApplicationInfoManager().getInfo();
+            Application app = this.discoveryClient.getApplication(self.getAppName());
+            List<InstanceInfo> instances = app == null ? Collections.<InstanceInfo>emptyList() : app.getInstances();
+            long now = System.currentTimeMillis();
+            int draining = 0;
+            boolean visible = false;
+            List<Queued> queue = new ArrayList<>();
+            queue.add(new Queued(this.queuedAt, self.getInstanceId()));
+            for(InstanceInfo instance : instances){
+                if(instance.getInstanceId().equals(self.getInstanceId())){
+                    visible = (QUEUED + this.queuedAt).equals(metadataOf(instance));
+                    continue;
+                }
+                String state = metadataOf(instance);
+                if(state == null){
+                    continue;
+                }
+                //排队的实例仍然注册且为UP，等待多久都有效；异常退出时随注册信息过期一起消失
+                if(state.startsWith(DRAINING)){
+                    if(now - timestampOf(state, DRAINING) < this.staleMillis){
+                        draining++;
+                    }
+                }else if(state.startsWith(QUEUED)){
+                    queue.add(new Queued(timestampOf(state, QUEUED), instance.getInstanceId()));
+                }
+            }
+            if(!visible && now - this.queuedAt < this.settleMillis()){
+                return;
+            }
+            Collections.sort(queue, QUEUE_ORDER);
+            int rank = 0;
+            while(!queue.get(rank).instanceId.equals(self.getInstanceId())){
+                rank++;
+            }
+            int limit = this.limitOf(Math.max(instances.size(), 1));
+            if(draining + rank >= limit){
+                logger.debug("rolling offline: {} draining, {} queued ahead, limit {}", draining, rank, limit);
+                return;
+            }
+            logger.info("rolling offline slot acquired after {} ms: {} draining, limit {}", now - this.queuedAt, draining, limit);
+            this.acquired = true;
+            this.publish(DRAINING + now);
+            this.discoveryClient.getApplicationInfoManager().setInstanceStatus(InstanceInfo.InstanceStatus.OUT_OF_SERVICE);
+            this.discoveryClient.unregisterEventListener(this);
+            this.scheduler.shutdown();
+            acquiredTask = this.onAcquired;
+        }
+        acquiredTask.run();
+    }
+
+    private int limitOf(int total){
+        if(this.maxCount > 0){
+            return this.maxCount;
+        }
+        return Math.max(1, total * this.maxPercent / 100);
+    }
+
+    /**
+     * 元数据从上报到其他实例可见需要一次同步和一次拉取
+     */
+    private long settleMillis(){
+        EurekaClientConfig config = this.discoveryClient.getEurekaClientConfig();
+        return 2000L * (config.getInstanceInfoReplicationIntervalSeconds() + config.getRegistryFetchIntervalSeconds());
+    }
+
+    private void publish(String state){
+        ApplicationInfoManager infoManager = this.discoveryClient.getApplicationInfoManager();
+        infoManager.registerAppMetadata(Collections.singletonMap(METADATA_KEY, state));
+    }
+
+    /**
+     * 下线未完成(等待超时且未强制关闭)时释放名额，清除元数据，之后可以重新排队
+     */
+    public synchronized void release(){
+        if(this.scheduler == null){
+            return;
+        }
+        this.scheduler.shutdownNow();
+        this.scheduler = null;
+        this.discoveryClient.unregisterEventListener(this);
+        this.acquired = false;
+        this.onAcquired = null;
+        this.publish(IDLE);
+        logger.info("rolling offline slot released");
+    }
+
+    public synchronized boolean isQueued(){
+        return this.scheduler != null && !this.acquired;
+    }
+
+    private static String metadataOf(InstanceInfo instance){
+        Map<String, String> metadata = instance.getMetadata();
+        return metadata == null ? null : metadata.get(METADATA_KEY);
+    }
+
+    private static long timestampOf(String state, String prefix){
+        try{
+            return Long.parseLong(state.substring(prefix.length()));
+        }catch(NumberFormatException e){
+            return 0;
+        }
+    }
+
+    private static final Comparator<Queued> QUEUE_ORDER = new Comparator<Queued>() {
+        @Override
+        public int compare(Queued o1, Queued o2) {
+            int result = Long.compare(o1.time, o2.time);
+            return result != 0 ? result : o1.instanceId.compareTo(o2.instanceId);
+        }
+    };
+
+    private static class Queued {
+
+        final long time;
+
+        final String instanceId;
+
+        Queued(long time, String instanceId){
+            this.time = time;
+            this.instanceId = instanceId;
+        }
+    }
+}
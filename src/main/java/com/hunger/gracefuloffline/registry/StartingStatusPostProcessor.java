@@ -0,0 +1,25 @@
+package com.hunger.gracefuloffline.registry;
+
+import com.netflix.appinfo.InstanceInfo;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.cloud.netflix.eureka.EurekaInstanceConfigBean;
+
+/**
+ * 优雅上线时让实例以STARTING状态注册，预热完成后再改为UP
+ */
+public class StartingStatusPostProcessor implements BeanPostProcessor {
+
+    @Override
+    public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
+        if(bean instanceof EurekaInstanceConfigBean){
+            ((EurekaInstanceConfigBean)bean).setInitialStatus(InstanceInfo.InstanceStatus.STARTING);
+        }
+        return bean;
+    }
+
+    @Override
+    public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
+        return bean;
+    }
+}
@@ -0,0 +1,45 @@
+package com.hunger.gracefuloffline.ribbon;
+
+import com.netflix.discovery.EurekaClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.util.StringUtils;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * 将本服务已创建的ribbon客户端名称发布到eureka实例元数据中
+ * 被依赖的服务下线时据此只检查真正调用它的实例
+ */
+public class RibbonClientPublisher {
+
+    private static final Logger logger = LoggerFactory.getLogger(RibbonClientPublisher.class);
+
+    /**
+     * 元数据key，值为逗号分隔的小写ribbon客户端名称
+     */
+    public static final String METADATA_KEY = "gracefuloffline.ribbon-clients";
+
+    private final EurekaClient discoveryClient;
+
+    private final ConcurrentSkipListSet<String> clientNames = new ConcurrentSkipListSet<>();
+
+    public RibbonClientPublisher(EurekaClient discoveryClient){
+        this.discoveryClient = discoveryClient;
+    }
+
+    /**
+     * ribbon客户端context创建时调用，有新客户端时更新元数据，随下一次实例信息同步发布到eureka
+     * @param clientName
+     */
+    public void publish(String clientName){
+        if(!StringUtils.hasText(clientName) || !this.clientNames.add(clientName.toLowerCase(Locale.ROOT))){
+            return;
+        }
+        String value = StringUtils.collectionToCommaDelimitedString(this.clientNames);
+        this.discoveryClient.getApplicationInfoManager().registerAppMetadata(Collections.singletonMap(METADATA_KEY, value));
+        logger.debug("publish ribbon clients: {}", value);
+    }
+}
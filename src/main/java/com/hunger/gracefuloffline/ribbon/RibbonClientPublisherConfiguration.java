@@ -0,0 +1,36 @@
+package com.hunger.gracefuloffline.ribbon;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 注册为ribbon默认配置，每个ribbon客户端context创建时向RibbonClientPublisher登记客户端名称
+ * 不能被主context扫描到
+ */
+@Configuration
+public class RibbonClientPublisherConfiguration {
+
+    @Bean
+    public Registration gracefulOfflineRibbonClientRegistration(@Value("${ribbon.client.name}") String clientName, RibbonClientPublisher publisher){
+        return new Registration(clientName, publisher);
+    }
+
+    public static class Registration implements InitializingBean {
+
+        private final String clientName;
+
+        private final RibbonClientPublisher publisher;
+
+        Registration(String clientName, RibbonClientPublisher publisher){
+            this.clientName = clientName;
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void afterPropertiesSet() {
+            this.publisher.publish(this.clientName);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.hunger.gracefuloffline.ribbon;
+
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.loadbalancer.BaseLoadBalancer;
+import com.netflix.loadbalancer.Server;
+import com.netflix.loadbalancer.ServerListChangeListener;
+import com.netflix.niws.loadbalancer.DiscoveryEnabledServer;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * 单个ribbon客户端的服务实例索引：小写instanceId -> Server
+ * 注册为ServerListChangeListener，ribbon服务列表更新时增量维护
+ */
+public class RibbonServerIndex implements ServerListChangeListener {
+
+    private final String clientName;
+
+    private final Object context;
+
+    private final BaseLoadBalancer loadBalancer;
+
+    private final ConcurrentHashMap<String, Server> servers = new ConcurrentHashMap<>();
+
+    /**
+     * 等待某个实例从服务列表中移除的回调
+     */
+    private final ConcurrentLinkedQueue<RemovalWaiter> waiters = new ConcurrentLinkedQueue<>();
+
+    /**
+     * 每次服务列表变化加1
+     */
+    private volatile long version;
+
+    public RibbonServerIndex(String clientName, Object context, BaseLoadBalancer loadBalancer){
+        this.clientName = clientName;
+        this.context = context;
+        this.loadBalancer = loadBalancer;
+        //先注册监听再加载，避免丢失两者之间的更新
+        loadBalancer.addServerListChangeListener(this);
+        synchronized (this){
+            this.apply(loadBalancer.getAllServers());
+        }
+    }
+
+    /**
+     * 按instanceId查找Server，大小写不敏感
+     * 调用方传入小写instanceId时不产生任何对象分配
+     * @param instanceId
+     * @return
+     */
+    public Server find(String instanceId){
+        Server server = this.servers.get(instanceId);
+        if(server == null){
+            String normalized = instanceId.toLowerCase(Locale.ROOT);
+            if(normalized != instanceId){
+                server = this.servers.get(normalized);
+            }
+        }
+        return server;
+    }
+
+    /**
+     * 实例不在服务列表中或已被标记为不可用时是否视为已移除
+     * @param instanceId
+     * @return
+     */
+    public boolean isRemoved(String instanceId){
+        Server server = this.find(instanceId);
+        return server == null || !server.isAlive();
+    }
+
+    /**
+     * 注册实例移除回调，实例移除后回调只执行一次
+     * 注册时实例已移除的，立即执行回调
+     * @param instanceId
+     * @param callback
+     * @return 用于取消等待
+     */
+    public RemovalWaiter awaitRemoval(String instanceId, Runnable callback){
+        RemovalWaiter waiter = new RemovalWaiter(instanceId, callback);
+        this.waiters.add(waiter);
+        //注册前实例可能已经移除
+        if(this.isRemoved(instanceId) && this.waiters.remove(waiter)){
+            waiter.callback.run();
+        }
+        return waiter;
+    }
+
+    public void cancelWaiter(RemovalWaiter waiter){
+        this.waiters.remove(waiter);
+    }
+
+    /**
+     * 检查等待中的实例，已移除的执行回调
+     * 服务列表变化时自动调用，实例状态在列表之外被修改时需要手动调用
+     */
+    public void notifyWaiters(){
+        for(RemovalWaiter waiter : this.waiters){
+            if(this.isRemoved(waiter.instanceId) && this.waiters.remove(waiter)){
+                waiter.callback.run();
+            }
+        }
+    }
+
+    /**
+     * 实例状态在列表之外被修改时调用，使依据旧状态的结果失效
+     */
+    public synchronized void invalidate(){
+        this.version++;
+    }
+
+    @Override
+    public void serverListChanged(List<Server> oldList, List<Server> newList) {
+        synchronized (this){
+            this.apply(newList);
+        }
+        this.notifyWaiters();
+    }
+
+    private void apply(List<Server> newList){
+        Set<String> present = new HashSet<>(newList.size() * 2);
+        for(Server server : newList){
+            String key = instanceIdOf(server);
+            if(key == null){
+                continue;
+            }
+            present.add(key);
+            if(this.servers.get(key) != server){
+                this.servers.put(key, server);
+            }
+        }
+        this.servers.keySet().retainAll(present);
+        this.version++;
+    }
+
+    static String instanceIdOf(Server server){
+        if(!(server instanceof DiscoveryEnabledServer)){
+            return null;
+        }
+        InstanceInfo instanceInfo = ((DiscoveryEnabledServer)server).getInstanceInfo();
+        if(instanceInfo == null || instanceInfo.getInstanceId() == null){
+            return null;
+        }
+        return instanceInfo.getInstanceId().toLowerCase(Locale.ROOT);
+    }
+
+    public String getClientName() {
+        return clientName;
+    }
+
+    public Object getContext() {
+        return context;
+    }
+
+    public BaseLoadBalancer getLoadBalancer() {
+        return loadBalancer;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public int size(){
+        return this.servers.size();
+    }
+
+    public static class RemovalWaiter {
+
+        private final String instanceId;
+
+        private final Runnable callback;
+
+        RemovalWaiter(String instanceId, Runnable callback){
+            this.instanceId = instanceId;
+            this.callback = callback;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.client.CheckResult;
+import com.hunger.gracefuloffline.client.RemoteCheckClient;
+import com.hunger.gracefuloffline.properties.GracefulOfflineProperties;
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.shared.Application;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 委托实例按下线方给出的时间检查每个成员，慢成员不会拖到下线方中止请求之后
+ */
+public class AggregateCheckHandlerTest {
+
+    private static final String SLOW_HOST = "10.0.1.3";
+
+    private InstanceCheckExecutor checkExecutor;
+
+    private AggregateCheckHandler handler;
+
+    @Before
+    public void setUp(){
+        InstanceInfo self = instance("10.0.1.1");
+        Application consumer = new Application("CONSUMER");
+        consumer.addInstance(self);
+        consumer.addInstance(instance("10.0.1.2"));
+        consumer.addInstance(instance(SLOW_HOST));
+
+        ApplicationInfoManager infoManager = mock(ApplicationInfoManager.class);
+        when(infoManager.getInfo()).thenReturn(self);
+        EurekaClient discoveryClient = mock(EurekaClient.class);
+        when(discoveryClient.getApplicationInfoManager()).thenReturn(infoManager);
+        when(discoveryClient.getApplication("CONSUMER")).thenReturn(consumer);
+
+        CheckInstanceInRibbonHandler ribbonHandler = mock(CheckInstanceInRibbonHandler.class);
+        when(ribbonHandler.check(anyString(), anyString())).thenReturn(true);
+
+        RemoteCheckClient remoteCheckClient = mock(RemoteCheckClient.class);
+        when(remoteCheckClient.check(anyString())).thenAnswer(new Answer<CheckResult>() {
+            @Override
+            public CheckResult answer(InvocationOnMock invocation) throws Throwable {
+                if(((String)invocation.getArguments()[0]).contains(SLOW_HOST)){
+                    Thread.sleep(3000);
+                }
+                return CheckResult.ABSENT;
+            }
+        });
+
+        GracefulOfflineProperties properties = new GracefulOfflineProperties();
+        properties.setCheckTimeout(5000);
+        this.checkExecutor = new InstanceCheckExecutor(4, properties.getCheckTimeout());
+        this.handler = new AggregateCheckHandler(discoveryClient, ribbonHandler, remoteCheckClient, this.checkExecutor, properties);
+    }
+
+    @After
+    public void tearDown(){
+        this.checkExecutor.destroy();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void slowMemberLimitedByCallerTimeout(){
+        long start = System.currentTimeMillis();
+        Map<String, Object> response = this.handler.check("provider", "10.0.0.1:provider:8080", false, 300);
+        assertTrue(System.currentTimeMillis() - start < 1500);
+
+        Map<String, CheckResult> instances = (Map<String, CheckResult>)response.get("instances");
+        assertEquals(3, instances.size());
+        assertEquals(CheckResult.ABSENT, instances.get("10.0.1.1:consumer:8080"));
+        assertEquals(CheckResult.ABSENT, instances.get("10.0.1.2:consumer:8080"));
+        assertEquals(CheckResult.IN_USE, instances.get(SLOW_HOST + ":consumer:8080"));
+        assertEquals(false, response.get("notExist"));
+    }
+
+    private static InstanceInfo instance(String host){
+        return InstanceInfo.Builder.newBuilder()
+                .setAppName("CONSUMER")
+                .setInstanceId(host + ":consumer:8080")
+                .setHostName(host)
+                .setIPAddr(host)
+                .setHomePageUrl(null, "http://" + host + ":8080/")
+                .setStatus(InstanceInfo.InstanceStatus.UP)
+                .build();
+    }
+}
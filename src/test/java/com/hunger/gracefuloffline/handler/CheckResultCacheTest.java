@@ -0,0 +1,86 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.ribbon.RibbonServerIndex;
+import com.netflix.loadbalancer.BaseLoadBalancer;
+import com.netflix.loadbalancer.Server;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CheckResultCacheTest {
+
+    private static final String INSTANCE_ID = "10.0.0.1:provider:8080";
+
+    private BaseLoadBalancer loadBalancer;
+
+    private RibbonServerIndex index;
+
+    private AtomicInteger loads;
+
+    private Callable<Boolean> loader;
+
+    @Before
+    public void setUp(){
+        this.loadBalancer = new BaseLoadBalancer();
+        this.index = new RibbonServerIndex("provider", new Object(), this.loadBalancer);
+        this.loads = new AtomicInteger();
+        this.loader = new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                loads.incrementAndGet();
+                return true;
+            }
+        };
+    }
+
+    @Test
+    public void resultReusedWithinTtl(){
+        CheckResultCache cache = new CheckResultCache(10000, 16);
+        assertTrue(cache.get(INSTANCE_ID, this.index, this.loader));
+        assertTrue(cache.get(INSTANCE_ID, this.index, this.loader));
+        assertEquals(1, this.loads.get());
+        assertEquals(Boolean.TRUE, cache.peek(INSTANCE_ID, this.index));
+    }
+
+    @Test
+    public void resultExpiresAfterTtl() throws InterruptedException {
+        CheckResultCache cache = new CheckResultCache(50, 16);
+        cache.get(INSTANCE_ID, this.index, this.loader);
+        Thread.sleep(80);
+        assertNull(cache.peek(INSTANCE_ID, this.index));
+        cache.get(INSTANCE_ID, this.index, this.loader);
+        assertEquals(2, this.loads.get());
+    }
+
+    /**
+     * ribbon服务列表变化(通过ServerListChangeListener回调)后不再使用之前的结果
+     */
+    @Test
+    public void resultInvalidatedByServerListChange(){
+        CheckResultCache cache = new CheckResultCache(10000, 16);
+        cache.get(INSTANCE_ID, this.index, this.loader);
+        long version = this.index.getVersion();
+        this.loadBalancer.setServersList(Collections.singletonList(new Server("10.0.0.2", 8080)));
+        assertTrue(this.index.getVersion() > version);
+        assertNull(cache.peek(INSTANCE_ID, this.index));
+        cache.get(INSTANCE_ID, this.index, this.loader);
+        assertEquals(2, this.loads.get());
+    }
+
+    @Test
+    public void expiredEntriesTrimmedOverMaxSize() throws InterruptedException {
+        CheckResultCache cache = new CheckResultCache(30, 2);
+        cache.get("a", this.index, this.loader);
+        cache.get("b", this.index, this.loader);
+        Thread.sleep(50);
+        cache.get("c", this.index, this.loader);
+        assertEquals(1, cache.size());
+    }
+}
@@ -0,0 +1,205 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.client.AggregateCheckResult;
+import com.hunger.gracefuloffline.client.CheckResult;
+import com.hunger.gracefuloffline.client.RemoteCheckClient;
+import com.hunger.gracefuloffline.drain.DrainCoordinator;
+import com.hunger.gracefuloffline.metrics.GracefulOfflineMetrics;
+import com.hunger.gracefuloffline.properties.GracefulOfflineProperties;
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.boot.ExitCodeGenerator;
+import org.springframework.context.ApplicationContext;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 聚合检查：委托实例返回全部成员时直接确认，缺少的成员单独检查，缺少自身时全部单独检查
+ */
+public class GracefulOffineHandlerAggregateTest {
+
+    private static final String[] CONSUMER_HOSTS = {"10.0.1.1", "10.0.1.2", "10.0.1.3"};
+
+    private EurekaClient discoveryClient;
+
+    private RemoteCheckClient remoteCheckClient;
+
+    private InstanceCheckExecutor checkExecutor;
+
+    private GracefulOffineHandler handler;
+
+    private ApplicationContext applicationContext;
+
+    @Before
+    public void setUp(){
+        InstanceInfo self = InstanceInfo.Builder.newBuilder()
+                .setAppName("PROVIDER")
+                .setInstanceId("10.0.0.1:provider:8080")
+                .setHostName("10.0.0.1")
+                .setStatus(InstanceInfo.InstanceStatus.UP)
+                .build();
+        Application provider = new Application("PROVIDER");
+        provider.addInstance(self);
+        Application consumer = new Application("CONSUMER");
+        for(String host : CONSUMER_HOSTS){
+            consumer.addInstance(InstanceInfo.Builder.newBuilder()
+                    .setAppName("CONSUMER")
+                    .setInstanceId(instanceIdOf(host))
+                    .setHostName(host)
+                    .setIPAddr(host)
+                    .setHomePageUrl(null, "http://" + host + ":8080/")
+                    .setStatus(InstanceInfo.InstanceStatus.UP)
+                    .build());
+        }
+        Applications apps = new Applications();
+        apps.addApplication(provider);
+        apps.addApplication(consumer);
+
+        ApplicationInfoManager infoManager = mock(ApplicationInfoManager.class);
+        when(infoManager.getInfo()).thenReturn(self);
+        this.discoveryClient = mock(EurekaClient.class);
+        when(this.discoveryClient.getApplicationInfoManager()).thenReturn(infoManager);
+        when(this.discoveryClient.getApplications()).thenReturn(apps);
+
+        this.remoteCheckClient = mock(RemoteCheckClient.class);
+        when(this.remoteCheckClient.check(any(URI.class))).thenReturn(CheckResult.ABSENT);
+
+        GracefulOfflineProperties properties = new GracefulOfflineProperties();
+        properties.setAggregate(true);
+        properties.setEvict(false);
+        properties.setWait(10);
+        this.checkExecutor = new InstanceCheckExecutor(4, 2000);
+        this.handler = new GracefulOffineHandler(this.discoveryClient, properties, this.checkExecutor, this.remoteCheckClient,
+                null, mock(DrainCoordinator.class), null, null, new GracefulOfflineMetrics());
+        this.applicationContext = mock(ApplicationContext.class);
+        this.handler.setApplicationContext(this.applicationContext);
+    }
+
+    @After
+    public void tearDown(){
+        this.checkExecutor.destroy();
+    }
+
+    @Test
+    public void allMembersConfirmedByDelegate() {
+        this.aggregateAnswer(false, false);
+        this.handler.shutdown();
+        this.awaitClosed();
+        verify(this.remoteCheckClient, times(1)).checkAggregate(anyString());
+        verify(this.remoteCheckClient, never()).check(any(URI.class));
+    }
+
+    /**
+     * 委托实例检查成员的时间比本次请求的check-timeout少留出余量
+     */
+    @Test
+    public void delegateGivenShorterMemberTimeout() {
+        this.aggregateAnswer(false, false);
+        this.handler.shutdown();
+        this.awaitClosed();
+        verify(this.remoteCheckClient).checkAggregate(contains("&timeout=4500"));
+    }
+
+    /**
+     * 委托实例看不到的成员单独检查，其余成员使用聚合结果
+     */
+    @Test
+    public void missingMemberCheckedDirectly() {
+        this.aggregateAnswer(true, false);
+        this.handler.shutdown();
+        this.awaitClosed();
+        List<String> checked = this.checkedHosts();
+        assertEquals(1, checked.size());
+        assertEquals(CONSUMER_HOSTS[CONSUMER_HOSTS.length - 1], checked.get(0));
+    }
+
+    /**
+     * 委托实例的结果中没有自身时不能确认任何成员，全部单独检查
+     */
+    @Test
+    public void delegateMissingFromItsOwnResultSplitsAll() {
+        this.aggregateAnswer(false, true);
+        this.handler.shutdown();
+        this.awaitClosed();
+        List<String> checked = this.checkedHosts();
+        Collections.sort(checked);
+        assertEquals(CONSUMER_HOSTS.length, checked.size());
+        for(int i = 0; i < CONSUMER_HOSTS.length; i++){
+            assertEquals(CONSUMER_HOSTS[i], checked.get(i));
+        }
+    }
+
+    /**
+     * 委托实例返回ABSENT结果
+     * @param omitLast 不返回最后一个非委托成员
+     * @param omitSelf 不返回委托实例自身
+     */
+    private void aggregateAnswer(final boolean omitLast, final boolean omitSelf){
+        when(this.remoteCheckClient.checkAggregate(anyString())).thenAnswer(new Answer<AggregateCheckResult>() {
+            @Override
+            public AggregateCheckResult answer(InvocationOnMock invocation) {
+                String delegateHost = URI.create((String)invocation.getArguments()[0]).getHost();
+                Map<String, CheckResult> results = new LinkedHashMap<>();
+                for(String host : CONSUMER_HOSTS){
+                    if(omitSelf && host.equals(delegateHost)){
+                        continue;
+                    }
+                    results.put(instanceIdOf(host), CheckResult.ABSENT);
+                }
+                if(omitLast){
+                    //测试数据中委托实例是第一个成员
+                    assertEquals(CONSUMER_HOSTS[0], delegateHost);
+                    results.remove(instanceIdOf(CONSUMER_HOSTS[CONSUMER_HOSTS.length - 1]));
+                }
+                return AggregateCheckResult.of(results);
+            }
+        });
+    }
+
+    /**
+     * 关闭流程结束时会通过SpringApplication.exit查找ExitCodeGenerator
+     */
+    private void awaitClosed(){
+        verify(this.applicationContext, timeout(5000)).getBeansOfType(ExitCodeGenerator.class);
+    }
+
+    private List<String> checkedHosts(){
+        ArgumentCaptor<URI> uris = ArgumentCaptor.forClass(URI.class);
+        verify(this.remoteCheckClient, atLeastOnce()).check(uris.capture());
+        List<String> hosts = new ArrayList<>();
+        for(URI uri : uris.getAllValues()){
+            hosts.add(uri.getHost());
+        }
+        return hosts;
+    }
+
+    private static String instanceIdOf(String host){
+        return host + ":consumer:8080";
+    }
+}
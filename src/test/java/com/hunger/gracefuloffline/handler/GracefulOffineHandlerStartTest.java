@@ -0,0 +1,76 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.client.RemoteCheckClient;
+import com.hunger.gracefuloffline.drain.DrainCoordinator;
+import com.hunger.gracefuloffline.metrics.GracefulOfflineMetrics;
+import com.hunger.gracefuloffline.properties.GracefulOfflineProperties;
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.shared.Applications;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * 配置错误在启动时暴露，下线任务未能开始时可以再次请求下线
+ */
+public class GracefulOffineHandlerStartTest {
+
+    private EurekaClient discoveryClient;
+
+    private GracefulOfflineProperties properties;
+
+    private InstanceCheckExecutor checkExecutor;
+
+    @Before
+    public void setUp(){
+        InstanceInfo self = InstanceInfo.Builder.newBuilder()
+                .setAppName("PROVIDER")
+                .setInstanceId("10.0.0.1:provider:8080")
+                .setHostName("10.0.0.1")
+                .setStatus(InstanceInfo.InstanceStatus.UP)
+                .build();
+        ApplicationInfoManager infoManager = mock(ApplicationInfoManager.class);
+        when(infoManager.getInfo()).thenReturn(self);
+        this.discoveryClient = mock(EurekaClient.class);
+        when(this.discoveryClient.getApplicationInfoManager()).thenReturn(infoManager);
+        when(this.discoveryClient.getApplications()).thenReturn(new Applications());
+        this.properties = new GracefulOfflineProperties();
+        this.checkExecutor = new InstanceCheckExecutor(1, 1000);
+    }
+
+    @After
+    public void tearDown(){
+        this.checkExecutor.destroy();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidBlockOnRejectedAtStartup(){
+        this.properties.setBlockOn("in_use,unreachabel");
+        this.newHandler();
+    }
+
+    @Test
+    public void failedStartResetsShutdowning(){
+        doThrow(new IllegalStateException("deregister failed")).when(this.discoveryClient).shutdown();
+        GracefulOffineHandler handler = this.newHandler();
+        try{
+            handler.shutdown();
+            fail();
+        }catch(IllegalStateException e){
+            assertFalse(handler.isShutdowning());
+        }
+    }
+
+    private GracefulOffineHandler newHandler(){
+        return new GracefulOffineHandler(this.discoveryClient, this.properties, this.checkExecutor, mock(RemoteCheckClient.class),
+                null, mock(DrainCoordinator.class), null, null, new GracefulOfflineMetrics());
+    }
+}
@@ -0,0 +1,141 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.client.CheckResult;
+import com.hunger.gracefuloffline.client.RemoteCheckClient;
+import com.hunger.gracefuloffline.drain.DrainCoordinator;
+import com.hunger.gracefuloffline.metrics.GracefulOfflineMetrics;
+import com.hunger.gracefuloffline.properties.GracefulOfflineProperties;
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.shared.Application;
+import com.netflix.discovery.shared.Applications;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.springframework.boot.ExitCodeGenerator;
+import org.springframework.context.ApplicationContext;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * zone-quorum只按返回ABSENT的实例计数
+ */
+public class GracefulOffineHandlerZoneQuorumTest {
+
+    private static final String[] CONSUMER_HOSTS = {"10.0.1.1", "10.0.1.2", "10.0.1.3"};
+
+    /**
+     * 主机 -> 检查结果
+     */
+    private final Map<String, CheckResult> results = new HashMap<>();
+
+    private InstanceCheckExecutor checkExecutor;
+
+    private ZoneAwareness zoneAwareness;
+
+    private ApplicationContext applicationContext;
+
+    private GracefulOffineHandler handler;
+
+    @Before
+    public void setUp(){
+        InstanceInfo self = InstanceInfo.Builder.newBuilder()
+                .setAppName("PROVIDER")
+                .setInstanceId("10.0.0.1:provider:8080")
+                .setHostName("10.0.0.1")
+                .setMetadata(Collections.singletonMap("zone", "zone-a"))
+                .setStatus(InstanceInfo.InstanceStatus.UP)
+                .build();
+        Application provider = new Application("PROVIDER");
+        provider.addInstance(self);
+        Application consumer = new Application("CONSUMER");
+        for(String host : CONSUMER_HOSTS){
+            consumer.addInstance(InstanceInfo.Builder.newBuilder()
+                    .setAppName("CONSUMER")
+                    .setInstanceId(host + ":consumer:8080")
+                    .setHostName(host)
+                    .setIPAddr(host)
+                    .setHomePageUrl(null, "http://" + host + ":8080/")
+                    .setMetadata(Collections.singletonMap("zone", "zone-a"))
+                    .setStatus(InstanceInfo.InstanceStatus.UP)
+                    .build());
+        }
+        Applications apps = new Applications();
+        apps.addApplication(provider);
+        apps.addApplication(consumer);
+
+        ApplicationInfoManager infoManager = mock(ApplicationInfoManager.class);
+        when(infoManager.getInfo()).thenReturn(self);
+        EurekaClient discoveryClient = mock(EurekaClient.class);
+        when(discoveryClient.getApplicationInfoManager()).thenReturn(infoManager);
+        when(discoveryClient.getApplications()).thenReturn(apps);
+
+        RemoteCheckClient remoteCheckClient = mock(RemoteCheckClient.class);
+        when(remoteCheckClient.check(any(URI.class))).thenAnswer(new Answer<CheckResult>() {
+            @Override
+            public CheckResult answer(InvocationOnMock invocation) {
+                return results.get(((URI)invocation.getArguments()[0]).getHost());
+            }
+        });
+        when(remoteCheckClient.checkWait(anyString())).thenAnswer(new Answer<CheckResult>() {
+            @Override
+            public CheckResult answer(InvocationOnMock invocation) {
+                return results.get(URI.create((String)invocation.getArguments()[0]).getHost());
+            }
+        });
+
+        GracefulOfflineProperties properties = new GracefulOfflineProperties();
+        properties.setZoneQuorum(50);
+        properties.setEvict(false);
+        properties.setRefresh(false);
+        properties.setWait(10);
+        this.checkExecutor = new InstanceCheckExecutor(4, 2000);
+        this.zoneAwareness = new ZoneAwareness(discoveryClient, properties);
+        this.handler = new GracefulOffineHandler(discoveryClient, properties, this.checkExecutor, remoteCheckClient,
+                null, mock(DrainCoordinator.class), null, this.zoneAwareness, new GracefulOfflineMetrics());
+        this.applicationContext = mock(ApplicationContext.class);
+        this.handler.setApplicationContext(this.applicationContext);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        this.checkExecutor.destroy();
+        this.zoneAwareness.destroy();
+    }
+
+    @Test
+    public void absentResultsReachQuorum(){
+        this.results.put(CONSUMER_HOSTS[0], CheckResult.ABSENT);
+        this.results.put(CONSUMER_HOSTS[1], CheckResult.ABSENT);
+        this.results.put(CONSUMER_HOSTS[2], CheckResult.IN_USE);
+        this.handler.shutdown();
+        verify(this.applicationContext, timeout(5000)).getBeansOfType(ExitCodeGenerator.class);
+    }
+
+    /**
+     * 无法连接的实例不再等待，但不能让同区仍在使用的实例也不再等待
+     */
+    @Test
+    public void unreachableResultsDoNotCountTowardQuorum(){
+        this.results.put(CONSUMER_HOSTS[0], CheckResult.UNREACHABLE);
+        this.results.put(CONSUMER_HOSTS[1], CheckResult.UNREACHABLE);
+        this.results.put(CONSUMER_HOSTS[2], CheckResult.IN_USE);
+        this.handler.shutdown();
+        verify(this.applicationContext, after(1500).never()).getBeansOfType(ExitCodeGenerator.class);
+    }
+}
@@ -0,0 +1,95 @@
+package com.hunger.gracefuloffline.handler;
+
+import com.hunger.gracefuloffline.client.CheckResult;
+import com.hunger.gracefuloffline.client.RemoteCheckClient;
+import com.hunger.gracefuloffline.properties.GracefulOfflineProperties;
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.EurekaClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.core.env.Environment;
+
+import java.net.URI;
+import java.util.Collections;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * 上线确认：只等待调用本服务的实例，没有本服务ribbon客户端的实例不阻塞确认
+ */
+public class GracefulOnlineHandlerTest {
+
+    private ApplicationInfoManager infoManager;
+
+    private RemoteCheckClient remoteCheckClient;
+
+    private InstanceCheckExecutor checkExecutor;
+
+    private GracefulOnlineHandler handler;
+
+    @Before
+    public void setUp(){
+        InstanceInfo self = InstanceInfo.Builder.newBuilder()
+                .setAppName("PROVIDER")
+                .setInstanceId("10.0.0.1:provider:8080")
+                .setHostName("10.0.0.1")
+                .setStatus(InstanceInfo.InstanceStatus.STARTING)
+                .build();
+        InstanceInfo peer = InstanceInfo.Builder.newBuilder()
+                .setAppName("OTHER")
+                .setInstanceId("10.0.1.1:other:8080")
+                .setHostName("10.0.1.1")
+                .setStatus(InstanceInfo.InstanceStatus.UP)
+                .build();
+        this.infoManager = mock(ApplicationInfoManager.class);
+        when(this.infoManager.getInfo()).thenReturn(self);
+        EurekaClient discoveryClient = mock(EurekaClient.class);
+        when(discoveryClient.getApplicationInfoManager()).thenReturn(this.infoManager);
+
+        GracefulOffineHandler offineHandler = mock(GracefulOffineHandler.class);
+        when(offineHandler.currentPeers()).thenReturn(Collections.singletonList(
+                new PeerTarget(peer, "other", "http://10.0.1.1:8080/gracefuloffline", "serverName=provider&instanceId=10.0.0.1:provider:8080", false)));
+
+        this.remoteCheckClient = mock(RemoteCheckClient.class);
+        when(this.remoteCheckClient.check(any(URI.class))).thenReturn(CheckResult.ABSENT);
+
+        GracefulOfflineProperties properties = new GracefulOfflineProperties();
+        properties.setOnlineConfirmTimeout(60000);
+        //确认完成后开始逐步提高权重，用第二步的权重判断确认已结束
+        properties.setOnlineWeightRamp(90);
+        this.checkExecutor = new InstanceCheckExecutor(2, 2000);
+        this.handler = new GracefulOnlineHandler(discoveryClient, offineHandler, this.remoteCheckClient, this.checkExecutor, properties,
+                mock(Environment.class), null);
+    }
+
+    @After
+    public void tearDown(){
+        this.checkExecutor.destroy();
+    }
+
+    @Test
+    public void nonConsumerDoesNotBlockConfirmation(){
+        when(this.remoteCheckClient.checkClient(anyString())).thenReturn(false);
+        this.handler.onApplicationEvent(null);
+        verify(this.infoManager, timeout(5000)).registerAppMetadata(Collections.singletonMap(GracefulOnlineHandler.WEIGHT_METADATA_KEY, "20"));
+    }
+
+    /**
+     * 有ribbon客户端但还看不到本实例时继续等待
+     */
+    @Test
+    public void consumerNotSeeingInstanceKeepsWaiting(){
+        when(this.remoteCheckClient.checkClient(anyString())).thenReturn(true);
+        this.handler.onApplicationEvent(null);
+        verify(this.infoManager, timeout(2000)).setInstanceStatus(InstanceInfo.InstanceStatus.UP);
+        verify(this.infoManager, after(500).never()).registerAppMetadata(Collections.singletonMap(GracefulOnlineHandler.WEIGHT_METADATA_KEY, "20"));
+    }
+}
@@ -0,0 +1,88 @@
+package com.hunger.gracefuloffline.handler;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertEquals;
+
+public class InstanceCheckExecutorTest {
+
+    private InstanceCheckExecutor executor;
+
+    @Before
+    public void setUp(){
+        this.executor = new InstanceCheckExecutor(1, 200);
+    }
+
+    @After
+    public void tearDown(){
+        this.executor.destroy();
+    }
+
+    @Test
+    public void slowCallExpiresAtDeadline(){
+        Map<String, Callable<String>> calls = new LinkedHashMap<>();
+        calls.put("slow", sleepThenReturn(2000, "done"));
+        long start = System.currentTimeMillis();
+        Map<String, String> results = this.executor.invokeAll(calls, "timeout");
+        assertEquals("timeout", results.get("slow"));
+        assertEquals(true, System.currentTimeMillis() - start < 1500);
+    }
+
+    /**
+     * 排队时间不计入超时：单线程依次执行，每个调用都在自己的超时时间内完成
+     */
+    @Test
+    public void queuedTimeIsNotCounted(){
+        Map<String, Callable<String>> calls = new LinkedHashMap<>();
+        for(int i = 0; i < 3; i++){
+            calls.put("call-" + i, sleepThenReturn(120, "done"));
+        }
+        Map<String, String> results = this.executor.invokeAll(calls, "timeout");
+        assertEquals(3, results.size());
+        for(String result : results.values()){
+            assertEquals("done", result);
+        }
+    }
+
+    @Test
+    public void perCallTimeoutOverridesDefault(){
+        Map<String, Callable<String>> calls = new LinkedHashMap<>();
+        calls.put("call", sleepThenReturn(300, "done"));
+        assertEquals("done", this.executor.invokeAll(calls, "timeout", 1000).get("call"));
+    }
+
+    @Test
+    public void shorterPerCallTimeoutExpiresEarly(){
+        Map<String, Callable<String>> calls = new LinkedHashMap<>();
+        calls.put("call", sleepThenReturn(150, "done"));
+        assertEquals("timeout", this.executor.invokeAll(calls, "timeout", 50).get("call"));
+    }
+
+    @Test
+    public void failedCallReturnsTimeoutValue(){
+        Map<String, Callable<String>> calls = new LinkedHashMap<>();
+        calls.put("error", new Callable<String>() {
+            @Override
+            public String call() {
+                throw new IllegalStateException("error");
+            }
+        });
+        assertEquals("timeout", this.executor.invokeAll(calls, "timeout").get("error"));
+    }
+
+    private static Callable<String> sleepThenReturn(final long millis, final String value){
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                Thread.sleep(millis);
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,150 @@
+package com.hunger.gracefuloffline.registry;
+
+import com.netflix.appinfo.ApplicationInfoManager;
+import com.netflix.appinfo.InstanceInfo;
+import com.netflix.discovery.CacheRefreshedEvent;
+import com.netflix.discovery.EurekaClient;
+import com.netflix.discovery.EurekaClientConfig;
+import com.netflix.discovery.shared.Application;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyMapOf;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RollingOfflineCoordinatorTest {
+
+    private static final String KEY = RollingOfflineCoordinator.METADATA_KEY;
+
+    private EurekaClient discoveryClient;
+
+    private ApplicationInfoManager infoManager;
+
+    private InstanceInfo self;
+
+    private InstanceInfo other;
+
+    private CountDownLatch acquired;
+
+    private Runnable onAcquired;
+
+    @Before
+    public void setUp(){
+        this.self = instance("10.0.0.1:provider:8080");
+        this.other = instance("10.0.0.2:provider:8080");
+        Application app = new Application("PROVIDER");
+        app.addInstance(this.self);
+        app.addInstance(this.other);
+
+        this.infoManager = mock(ApplicationInfoManager.class);
+        when(this.infoManager.getInfo()).thenReturn(this.self);
+        //发布的元数据立即在注册表中可见
+        Mockito.doAnswer(new Answer<Void>() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Void answer(InvocationOnMock invocation) {
+                self.getMetadata().putAll((Map<String, String>)invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(this.infoManager).registerAppMetadata(anyMapOf(String.class, String.class));
+
+        EurekaClientConfig config = mock(EurekaClientConfig.class);
+        this.discoveryClient = mock(EurekaClient.class);
+        when(this.discoveryClient.getApplicationInfoManager()).thenReturn(this.infoManager);
+        when(this.discoveryClient.getEurekaClientConfig()).thenReturn(config);
+        when(this.discoveryClient.getApplication("PROVIDER")).thenReturn(app);
+
+        this.acquired = new CountDownLatch(1);
+        this.onAcquired = new Runnable() {
+            @Override
+            public void run() {
+                acquired.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void acquiresWhenNobodyDraining() throws InterruptedException {
+        RollingOfflineCoordinator coordinator = new RollingOfflineCoordinator(this.discoveryClient, "1", 60000);
+        coordinator.enqueue(this.onAcquired);
+        assertTrue(this.acquired.await(2, TimeUnit.SECONDS));
+        assertFalse(coordinator.isQueued());
+        assertTrue(this.self.getMetadata().get(KEY).startsWith("draining:"));
+        verify(this.infoManager).setInstanceStatus(InstanceInfo.InstanceStatus.OUT_OF_SERVICE);
+    }
+
+    /**
+     * 名额被占用时保持排队，对方释放后在下一次注册表刷新时获得
+     */
+    @Test
+    public void waitsUntilDrainingSlotReleased() throws InterruptedException {
+        this.other.getMetadata().put(KEY, "draining:" + System.currentTimeMillis());
+        RollingOfflineCoordinator coordinator = new RollingOfflineCoordinator(this.discoveryClient, "1", 60000);
+        coordinator.enqueue(this.onAcquired);
+        assertFalse(this.acquired.await(300, TimeUnit.MILLISECONDS));
+        assertTrue(coordinator.isQueued());
+        assertTrue(this.self.getMetadata().get(KEY).startsWith("queued:"));
+
+        this.other.getMetadata().remove(KEY);
+        coordinator.onEvent(new CacheRefreshedEvent());
+        assertTrue(this.acquired.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void staleDrainingIgnored() throws InterruptedException {
+        this.other.getMetadata().put(KEY, "draining:" + (System.currentTimeMillis() - 120000));
+        RollingOfflineCoordinator coordinator = new RollingOfflineCoordinator(this.discoveryClient, "1", 60000);
+        coordinator.enqueue(this.onAcquired);
+        assertTrue(this.acquired.await(2, TimeUnit.SECONDS));
+    }
+
+    /**
+     * 排在前面的实例无论排队多久都占用顺序
+     */
+    @Test
+    public void oldQueuedEntryKeepsItsPlace() throws InterruptedException {
+        this.other.getMetadata().put(KEY, "queued:1");
+        RollingOfflineCoordinator coordinator = new RollingOfflineCoordinator(this.discoveryClient, "1", 60000);
+        coordinator.enqueue(this.onAcquired);
+        assertFalse(this.acquired.await(300, TimeUnit.MILLISECONDS));
+        assertTrue(coordinator.isQueued());
+    }
+
+    @Test
+    public void releaseClearsQueuedState() throws InterruptedException {
+        this.other.getMetadata().put(KEY, "draining:" + System.currentTimeMillis());
+        RollingOfflineCoordinator coordinator = new RollingOfflineCoordinator(this.discoveryClient, "1", 60000);
+        coordinator.enqueue(this.onAcquired);
+        assertFalse(this.acquired.await(200, TimeUnit.MILLISECONDS));
+        coordinator.release();
+        assertFalse(coordinator.isQueued());
+        assertEquals("idle", this.self.getMetadata().get(KEY));
+        verify(this.discoveryClient).unregisterEventListener(coordinator);
+
+        //释放后可以重新排队
+        this.other.getMetadata().remove(KEY);
+        coordinator.enqueue(this.onAcquired);
+        assertTrue(this.acquired.await(2, TimeUnit.SECONDS));
+    }
+
+    private static InstanceInfo instance(String instanceId){
+        return InstanceInfo.Builder.newBuilder()
+                .setAppName("PROVIDER")
+                .setInstanceId(instanceId)
+                .setHostName(instanceId.substring(0, instanceId.indexOf(':')))
+                .setStatus(InstanceInfo.InstanceStatus.UP)
+                .build();
+    }
+}